@@ -16,18 +16,35 @@
 
 package ml.darubyminer360.cloudinstaller;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.function.Predicate;
 
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan.Source;
 import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.CircuitBreaker;
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
+import ml.darubyminer360.cloudinstaller.download.HttpStatusException;
+import ml.darubyminer360.cloudinstaller.download.HttpTransport;
+import ml.darubyminer360.cloudinstaller.download.InFlight;
+import ml.darubyminer360.cloudinstaller.download.LibraryIndex;
+import ml.darubyminer360.cloudinstaller.download.Materializer;
+import ml.darubyminer360.cloudinstaller.download.MetadataCache;
+import ml.darubyminer360.cloudinstaller.download.PartialDownload;
+import ml.darubyminer360.cloudinstaller.download.RetryPolicy;
+import ml.darubyminer360.cloudinstaller.download.SegmentedDownload;
+import ml.darubyminer360.cloudinstaller.download.Transfer;
 import ml.darubyminer360.cloudinstaller.json.Artifact;
 import ml.darubyminer360.cloudinstaller.json.Manifest;
 import ml.darubyminer360.cloudinstaller.json.Mirror;
@@ -80,15 +97,22 @@ public class DownloadUtils {
 
         target.getParentFile().mkdirs();
 
+        // The shared cache is the cheapest source, it only needs a link
+        if (fromCache(monitor, download, target)) {
+            grabbed.add(artifact);
+            return true;
+        }
+
         // Try extracting first
-        try (final InputStream input = DownloadUtils.class.getResourceAsStream("/maven/" + artifact.getPath())) {
-            if (input != null) {
+        InstallerArchive archive = InstallerArchive.get();
+        try {
+            if (archive.contains("/maven/" + artifact.getPath())) {
                 monitor.message("  Extracting library from /maven/" + artifact.getPath());
-                Files.copy(input, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                String sha1 = archive.extract("/maven/" + artifact.getPath(), target);
                 if (download.getSha1() != null) {
-                    String sha1 = getSha1(target);
                     if (download.getSha1().equals(sha1)) {
                         monitor.message("    Extraction completed: Checksum validated.");
+                        ArtifactCache.store(sha1, target);
                         grabbed.add(artifact);
                         return true;
                     }
@@ -112,44 +136,35 @@ public class DownloadUtils {
         }
 
         // Try searching local installs if the file can be validated
-        if (download.getSha1() != null) {
-            String providedSha1 = download.getSha1();
-            for (File libDir : additionalLibraryDirs) {
-                File inLibDir = new File(libDir, artifact.getPath());
-                if (inLibDir.exists()) {
-                    monitor.message(String.format("  Found artifact in local folder %s", libDir.toString()));
-                    String sha1 = DownloadUtils.getSha1(inLibDir);
-                    if (providedSha1.equals(sha1)) {
-                        monitor.message("    Checksum validated");
-                    } else {
-                        // Do not fail immediately. We may have other sources
-                        monitor.message("    Invalid checksum. Not using.");
-                        continue;
-                    }
-                    // Valid checksum, copy the lib
-                    try {
-                        Files.copy(inLibDir.toPath(), target.toPath());
-                        monitor.message("    Successfully copied local file");
-                        grabbed.add(artifact);
-                        return true;
-                    } catch (IOException e) {
-                        // The copy may have failed when the file is in use. Don't abort, we may have other sources
-                        e.printStackTrace();
-                        monitor.message(String.format("    Failed to copy from local folder: %s", e.toString()));
-                        // Clean up the file that may have been created if the copy failed
-                        if (target.exists()) {
-                            if (!target.delete()) {
-                                monitor.message("    Failed to delete failed copy, aborting");
-                                return false;
-                            }
+        if (download.getSha1() != null && !additionalLibraryDirs.isEmpty()) {
+            String sha1 = download.getSha1();
+            File local = LibraryIndex.get(additionalLibraryDirs).find(artifact.getPath(), sha1, download.getSize());
+            if (local != null) {
+                monitor.message(String.format("  Found artifact in local folder: %s", local.toString()));
+                monitor.message("    Checksum validated");
+                try {
+                    boolean linked = Materializer.materialize(local, target, true);
+                    monitor.message(linked ? "    Successfully linked local file" : "    Successfully copied local file");
+                    HashIndex.record(target, sha1);
+                    ArtifactCache.store(sha1, target);
+                    grabbed.add(artifact);
+                    return true;
+                } catch (IOException e) {
+                    // The copy may have failed when the file is in use. Don't abort, we may have other sources
+                    e.printStackTrace();
+                    monitor.message(String.format("    Failed to copy from local folder: %s", e.toString()));
+                    // Clean up the file that may have been created if the copy failed
+                    if (target.exists()) {
+                        if (!target.delete()) {
+                            monitor.message("    Failed to delete failed copy, aborting");
+                            return false;
                         }
                     }
                 }
             }
         }
 
-        String url = download.getUrl();
-        if (url == null || url.isEmpty()) {
+        if (!download.hasUrl()) {
             monitor.message("  Invalid library, missing url");
             return false;
         }
@@ -161,139 +176,266 @@ public class DownloadUtils {
         return false;
     }
 
+    /**
+     * Works out where {@link #downloadLibrary} would get the library from, and adds it to the plan. Nothing is changed on disk.
+     */
+    public static void planLibrary(InstallPlan plan, Mirror mirror, Library library, File root, Predicate<String> optional, List<File> additionalLibraryDirs) {
+        Artifact artifact = library.getName();
+        File target = artifact.getLocalPath(root);
+        LibraryDownload download = library.getDownloads() == null ? null :  library.getDownloads().getArtifact();
+        if (download == null) {
+            download = new LibraryDownload();
+            download.setPath(artifact.getPath());
+        }
+
+        if (!optional.test(artifact.getDescriptor()))
+            return;
+
+        String name = artifact.getDescriptor();
+        long size = download.getSize();
+        String sha1 = download.getSha1();
+        String url = download.getUrl();
+        if (target.exists() && (sha1 == null || sha1.equals(getSha1(target))))
+            plan.add("library", name, target, Source.EXISTING, size, null);
+        else if (sha1 != null && ArtifactCache.contains(sha1))
+            plan.add("library", name, target, Source.CACHE, size, null);
+        else if (InstallerArchive.get().contains("/maven/" + artifact.getPath()))
+            plan.add("library", name, target, Source.EMBEDDED, size, null);
+        else if (sha1 != null && !additionalLibraryDirs.isEmpty() && LibraryIndex.get(additionalLibraryDirs).find(artifact.getPath(), sha1, size) != null)
+            plan.add("library", name, target, Source.LOCAL, size, null);
+        else if (!download.hasUrl()) // No url, this is created by a processor
+            plan.add("library", name, target, Source.PROCESSOR, size, null);
+        else if (getMirrorUrl(mirror, download) != null)
+            plan.add("library", name, target, Source.MIRROR, size, getMirrorUrl(mirror, download));
+        else
+            plan.add("library", name, target, Source.ORIGIN, size, url);
+    }
+
+    /**
+     * Works out where {@link #download(ProgressCallback, Mirror, Download, File)} would get the file from, and adds it to the plan.
+     */
+    public static void planDownload(InstallPlan plan, String kind, String name, Download download, File target) {
+        if (target.exists())
+            plan.add(kind, name, target, Source.EXISTING, download.getSize(), null);
+        else if (download.getSha1() != null && ArtifactCache.contains(download.getSha1()))
+            plan.add(kind, name, target, Source.CACHE, download.getSize(), null);
+        else
+            plan.add(kind, name, target, Source.ORIGIN, download.getSize(), download.getUrl());
+    }
+
+    private static String getMirrorUrl(Mirror mirror, LibraryDownload download) {
+        String url = download.getUrl();
+        if (url.startsWith("http") && !url.startsWith(LIBRARIES_URL) && mirror != null && url.endsWith(download.getPath()))
+            return mirror.getUrl() + download.getPath();
+        return null;
+    }
+
     public static boolean download(ProgressCallback monitor, Mirror mirror, LibraryDownload download, File target) {
+        if (fromCache(monitor, download, target))
+            return true;
+        return InFlight.fetch(monitor, download.getUrl(), download.getSha1(), target, () -> fetchLibrary(monitor, mirror, download, target));
+    }
+
+    private static boolean fetchLibrary(ProgressCallback monitor, Mirror mirror, LibraryDownload download, File target) {
         String url = download.getUrl();
-        if (url.startsWith("http") && !url.startsWith(LIBRARIES_URL) && mirror != null && url.endsWith(download.getPath())) {
+        String mirrored = getMirrorUrl(mirror, download);
+        if (mirrored != null) {
             // TODO: Vanilla launcher is dumb so we fake classifier only deps. One day the launcher will be sane/document...
             // Anyways, the path is not the same as the real maven path. So we don't have a good way to determine the mirrored url
-            if (download(monitor, mirror, download, target, mirror.getUrl() + download.getPath())) // Use unmirrored if mirror fails.
-                return true;
+            if (CircuitBreaker.forUrl(mirror.getUrl()).allowRequest()) {
+                long start = System.nanoTime();
+                if (download(monitor, mirror, download, target, mirrored)) { // Use unmirrored if mirror fails.
+                    mirror.recordTransfer(target.length(), System.nanoTime() - start);
+                    return true;
+                }
+                mirror.recordFailure();
+            } else {
+                monitor.message("  Mirror " + mirror.getUrl() + " keeps failing, skipping it");
+            }
         }
         return download(monitor, mirror, download, target, url);
     }
 
     public static boolean download(ProgressCallback monitor, Mirror mirror, Download download, File target) {
-        return download(monitor, mirror, download, target, download.getUrl());
+        if (fromCache(monitor, download, target))
+            return true;
+        return InFlight.fetch(monitor, download.getUrl(), download.getSha1(), target, () -> download(monitor, mirror, download, target, download.getUrl()));
+    }
+
+    private static boolean fromCache(ProgressCallback monitor, Download download, File target) {
+        if (download.getSha1() == null || !ArtifactCache.materialize(download.getSha1(), download.getSize(), target))
+            return false;
+        HashIndex.record(target, download.getSha1());
+        monitor.message("  Found in shared cache: " + ArtifactCache.getRoot());
+        return true;
     }
 
     private static boolean download(ProgressCallback monitor, Mirror mirror, Download download, File target, String url) {
         monitor.message("  Downloading library from " + url);
+        if (OFFLINE_MODE) {
+            System.out.println("Offline Mode: Not downloading: " + url);
+            return false;
+        }
+        // Data goes to a .part file first, so the target only ever exists once it has been verified.
+        // If the transfer breaks the part file is kept, and the next attempt resumes where this one stopped.
+        if (download.getSha1() != null)
+            SpeculativePrefetch.handOver(download.getSha1(), target);
         try {
-            URLConnection connection = getConnection(url);
-            if (connection != null) {
-                Files.copy(connection.getInputStream(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
-                if (download.getSha1() != null) {
-                    String sha1 = getSha1(target);
-                    if (download.getSha1().equals(sha1)) {
-                        monitor.message("    Download completed: Checksum validated.");
-                        return true;
+            MessageDigest digest = HashFunction.SHA1.get();
+            File part = null;
+            if (SegmentedDownload.isEligible(url, target, download.getSize())) {
+                try {
+                    part = SegmentedDownload.fetch(monitor, url, target, download.getSize(), digest);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (SegmentedDownload.hasProgress(target)) {
+                        // Switching to a single connection would throw away the segments, the next attempt continues them instead
+                        monitor.message("    Segmented download failed, keeping the downloaded segments: " + e.toString());
+                        return false;
                     }
+                    monitor.message("    Segmented download failed, using a single connection: " + e.toString());
+                    digest.reset();
+                }
+            }
+            if (part == null)
+                part = fetch(monitor, url, target, digest);
+            if (part == null)
+                return false;
+            long size = part.length();
+
+            if (download.getSize() > 0 && size != download.getSize()) {
+                monitor.message("    Download failed: Size invalid, deleting file:");
+                monitor.message("      Expected: " + download.getSize());
+                monitor.message("      Actual:   " + size);
+                PartialDownload.discard(target);
+                return false;
+            }
+
+            if (download.getSha1() != null) {
+                String sha1 = HashFunction.SHA1.hex(digest.digest());
+                if (!download.getSha1().equals(sha1)) {
                     monitor.message("    Download failed: Checksum invalid, deleting file:");
                     monitor.message("      Expected: " + download.getSha1());
                     monitor.message("      Actual:   " + sha1);
-                    if (!target.delete()) {
-                        monitor.stage("      Failed to delete file, aborting.");
-                        return false;
-                    }
+                    PartialDownload.discard(target);
+                    return false;
                 }
-                monitor.message("    Download completed: No checksum, Assuming valid.");
+                PartialDownload.complete(target);
+                HashIndex.record(target, sha1);
+                ArtifactCache.store(sha1, target);
+                monitor.message("    Download completed: Checksum validated.");
+                return true;
             }
+
+            PartialDownload.complete(target);
+            monitor.message("    Download completed: No checksum, Assuming valid.");
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            monitor.message("    Download failed: " + e.toString());
         }
         return false;
     }
 
+    /**
+     * Fetches the url into the target's part file, retrying transient failures.
+     * Every retry resumes from what the previous attempt already wrote.
+     */
+    private static File fetch(ProgressCallback monitor, String url, File target, MessageDigest digest) {
+        CircuitBreaker breaker = CircuitBreaker.forUrl(url);
+        for (int attempt = 1; ; attempt++) {
+            digest.reset();
+            try {
+                File part = PartialDownload.fetch(monitor, url, target, digest);
+                breaker.recordSuccess();
+                return part;
+            } catch (IOException e) {
+                boolean retryable = RetryPolicy.isRetryable(e);
+                if (e instanceof HttpStatusException && !retryable)
+                    breaker.recordSuccess(); // The server answered, it just doesn't have the file
+                else
+                    breaker.recordFailure();
+
+                if (!retryable || attempt >= RetryPolicy.getAttempts() || !breaker.isClosed()) {
+                    e.printStackTrace();
+                    monitor.message("    Download failed: " + e.toString());
+                    return null;
+                }
+                monitor.message(String.format("    Download failed, retrying (%d/%d): %s", attempt, RetryPolicy.getAttempts() - 1, e.toString()));
+                if (!RetryPolicy.sleep(attempt, e))
+                    return null;
+            }
+        }
+    }
+
     public static String getSha1(File target) {
+        String known = HashIndex.get(target);
+        if (known != null)
+            return known;
         try {
-            return HashFunction.SHA1.hash(Files.readAllBytes(target.toPath())).toString();
+            String sha1 = HashFunction.SHA1.hash(target);
+            HashIndex.record(target, sha1);
+            return sha1;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    private static boolean checksumValid(File target, String checksum) {
-        if (checksum == null || checksum.isEmpty())
-            return true;
-        String sha1 = getSha1(target);
-        return sha1 != null && sha1.equals(checksum);
-    }
-
-    private static URLConnection getConnection(String address) {
+    private static InputStream openStream(String address, boolean compressed) throws IOException {
         if (OFFLINE_MODE) {
             System.out.println("Offline Mode: Not downloading: " + address);
             return null;
         }
-
-        try {
-            int MAX = 3;
-            URL url = new URL(address);
-            URLConnection connection = null;
-            for (int x = 0; x < MAX; x++) { //Maximum of 3 redirects.
-                connection = url.openConnection();
-                connection.setConnectTimeout(5000);
-                connection.setReadTimeout(5000);
-                if (connection instanceof HttpURLConnection) {
-                    HttpURLConnection hcon = (HttpURLConnection)connection;
-                    hcon.setInstanceFollowRedirects(false);
-                    int res = hcon.getResponseCode();
-                    if (res == HttpURLConnection.HTTP_MOVED_PERM || res == HttpURLConnection.HTTP_MOVED_TEMP) {
-                        String location = hcon.getHeaderField("Location");
-                        hcon.disconnect(); //Kill old connection.
-                        if (x == MAX-1) {
-                            System.out.println("Invalid number of redirects: " + location);
-                            return null;
-                        } else {
-                            System.out.println("Following redirect: " + location);
-                            url = new URL(url, location); // Nested in case of relative urls.
-                        }
-                    } else {
-                        break;
-                    }
-                } else {
-                    break;
-                }
-            }
-            return connection;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return HttpTransport.open(address, compressed);
     }
 
     public static boolean downloadFileEtag(File target, String url) {
+        if (OFFLINE_MODE) {
+            System.out.println("Offline Mode: Not downloading: " + url);
+            return false;
+        }
+        File temp = Transfer.getTemp(target, ".tmp");
         try {
-            URLConnection connection = getConnection(url);
-            String etag = connection.getHeaderField("ETag");
+            HttpResponse<InputStream> response = HttpTransport.get(url);
+            String etag = response.headers().firstValue("ETag").orElse(null);
             if (etag == null)
               etag = "-";
             else if ((etag.startsWith("\"")) && (etag.endsWith("\"")))
                 etag = etag.substring(1, etag.length() - 1);
 
-            Files.copy(connection.getInputStream(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            MessageDigest digest = HashFunction.MD5.get();
+            try (InputStream stream = response.body();
+                 OutputStream out = Files.newOutputStream(temp.toPath())) {
+                Transfer.copy(stream, out, digest);
+            }
 
-            if (etag.indexOf('-') != -1) return true; //No-etag, assume valid
-            byte[] fileData = Files.readAllBytes(target.toPath());
-            String md5 = HashFunction.MD5.hash(fileData).toString();
+            if (etag.indexOf('-') != -1) { //No-etag, assume valid
+                Transfer.moveIntoPlace(temp, target);
+                return true;
+            }
+            String md5 = HashFunction.MD5.hex(digest.digest());
             System.out.println("  ETag: " + etag);
             System.out.println("  MD5:  " + md5);
-            return etag.equalsIgnoreCase(md5);
+            if (!etag.equalsIgnoreCase(md5)) {
+                temp.delete();
+                return false;
+            }
+            Transfer.moveIntoPlace(temp, target);
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            temp.delete();
             return false;
         }
     }
 
     public static Mirror[] downloadMirrors(String url) {
+        byte[] data = MetadataCache.get(url, MetadataCache.MIRROR_LIST_AGE, OFFLINE_MODE);
         try {
-            URLConnection connection = getConnection(url);
-            if (connection != null) {
-                try (InputStream stream = connection.getInputStream()) {
-                    return Util.loadMirrorList(stream);
-                }
-            }
+            if (data != null)
+                return Util.loadMirrorList(new ByteArrayInputStream(data));
         } catch (Throwable e) {
             e.printStackTrace();
         }
@@ -301,24 +443,36 @@ public class DownloadUtils {
     }
 
     public static Manifest downloadManifest() {
+        byte[] data = MetadataCache.get(MANIFEST_URL, MetadataCache.MANIFEST_AGE, OFFLINE_MODE);
         try {
-            URLConnection connection = getConnection(MANIFEST_URL);
-            if (connection != null) {
-                try (InputStream stream = connection.getInputStream()) {
-                    return Util.loadManifest(stream);
-                }
-            }
-        } catch (IOException e) {
+            if (data != null)
+                return Util.loadManifest(new ByteArrayInputStream(data));
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    public static boolean downloadFile(File target, String url) {
+    /**
+     * Downloads a version json, or another metadata file, through the metadata cache.
+     */
+    public static boolean downloadMetadata(File target, String url) {
+        byte[] data = MetadataCache.get(url, MetadataCache.VERSION_AGE, OFFLINE_MODE);
+        if (data == null)
+            return false;
         try {
-            URLConnection connection = getConnection(url);
-            if (connection != null) {
-                Files.copy(connection.getInputStream(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.write(target.toPath(), data);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static boolean downloadFile(File target, String url) {
+        try (InputStream stream = openStream(url, url.endsWith(".json"))) {
+            if (stream != null) {
+                Files.copy(stream, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
                 return true;
             }
         } catch (IOException e) {
@@ -328,18 +482,13 @@ public class DownloadUtils {
     }
 
     public static boolean extractFile(Artifact art, File target, String checksum) {
-        final InputStream input = DownloadUtils.class.getResourceAsStream("/maven/" + art.getPath());
-        if (input == null) {
-            System.out.println("File not found in installer archive: /maven/" + art.getPath());
-            return false;
-        }
-
-        if (!target.getParentFile().exists())
-            target.getParentFile().mkdirs();
-
         try {
-            Files.copy(input, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            return checksumValid(target, checksum);
+            String sha1 = InstallerArchive.get().extract("/maven/" + art.getPath(), target);
+            if (sha1 == null) {
+                System.out.println("File not found in installer archive: /maven/" + art.getPath());
+                return false;
+            }
+            return checksum == null || checksum.isEmpty() || checksum.equals(sha1);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -348,18 +497,12 @@ public class DownloadUtils {
 
     public static boolean extractFile(String name, File target) {
         final String path = name.charAt(0) == '/' ? name : '/' + name;
-        final InputStream input = DownloadUtils.class.getResourceAsStream(path);
-        if (input == null) {
-            System.out.println("File not found in installer archive: " + path);
-            return false;
-        }
-
-        if (!target.getParentFile().exists())
-            target.getParentFile().mkdirs();
-
         try {
-            Files.copy(input, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            return true; //checksumValid(target, checksum); //TODO: zip checksums?
+            if (InstallerArchive.get().extract(path, target) == null) {
+                System.out.println("File not found in installer archive: " + path);
+                return false;
+            }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -17,6 +17,7 @@
 package ml.darubyminer360.cloudinstaller;
 
 import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.HttpTransport;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -111,6 +112,7 @@ class FixSSL {
             final SSLContext tls = SSLContext.getInstance("TLS");
             tls.init(null, instance.getTrustManagers(), null);
             HttpsURLConnection.setDefaultSSLSocketFactory(tls.getSocketFactory());
+            HttpTransport.setSSLContext(tls);
             callback.message("Added Lets Encrypt root certificates as additional trust");
         } catch (UncheckedKeyStoreException | KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException | KeyManagementException e) {
             callback.message("Failed to load lets encrypt certificate. Expect problems", ProgressCallback.MessagePriority.HIGH);
@@ -17,14 +17,17 @@
 package ml.darubyminer360.cloudinstaller;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
 import java.util.Locale;
+import java.util.Map;
 
 //These are all standard hashing functions the JRE is REQUIRED to have, so add a nice factory that doesn't require catching annoying exceptions;
 public enum HashFunction {
@@ -32,8 +35,15 @@ public enum HashFunction {
     SHA1("SHA-1", 40),
     SHA256("SHA-256", 64);
 
+    // Files are streamed through one small buffer per thread, so hashing a large jar doesn't need a large heap.
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> HEAP_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private String algo;
     private String pad;
+    private final ThreadLocal<MessageDigest> local = ThreadLocal.withInitial(this::get);
 
     private HashFunction(String algo, int length) {
         this.algo = algo;
@@ -53,27 +63,42 @@ public enum HashFunction {
         }
     }
 
+    /**
+     * Gets this thread's digest, reset and ready for use. It must not escape the calling method.
+     */
+    private MessageDigest local() {
+        MessageDigest digest = local.get();
+        digest.reset();
+        return digest;
+    }
+
     public String hash(File file) throws IOException {
-        try (FileInputStream fin = new FileInputStream(file)) {
-            return hash(fin);
-        }
+        return hash(file, this).get(this);
     }
 
-    public String hash(Iterable<File> files) throws IOException {
-        MessageDigest hash = get();
-        byte[] buf = new byte[1024];
+    /**
+     * Hashes the file with several functions while reading it only once.
+     */
+    public static Map<HashFunction, String> hash(File file, HashFunction... functions) throws IOException {
+        MessageDigest[] digests = new MessageDigest[functions.length];
+        for (int x = 0; x < functions.length; x++)
+            digests[x] = functions[x].local();
 
-        for (File file : files) {
-            if (!file.exists())
-                continue;
+        update(file, digests);
 
-            try (FileInputStream fin = new FileInputStream(file)) {
-                int count = -1;
-                while ((count = fin.read(buf)) != -1)
-                    hash.update(buf, 0, count);
-            }
+        Map<HashFunction, String> ret = new EnumMap<>(HashFunction.class);
+        for (int x = 0; x < functions.length; x++)
+            ret.put(functions[x], toHex(digests[x].digest()));
+        return ret;
+    }
+
+    public String hash(Iterable<File> files) throws IOException {
+        MessageDigest hash = local();
+        for (File file : files) {
+            if (file.exists())
+                update(file, hash);
         }
-        return pad(new BigInteger(1, hash.digest()).toString(16));
+        return hex(hash.digest());
     }
 
     public String hash(String data) {
@@ -81,19 +106,47 @@ public enum HashFunction {
     }
 
     public String hash(InputStream stream) throws IOException {
-        MessageDigest hash = get();
-        byte[] buf = new byte[1024];
+        MessageDigest hash = local();
+        byte[] buf = HEAP_BUFFER.get();
         int count = -1;
         while ((count = stream.read(buf)) != -1)
             hash.update(buf, 0, count);
-        return pad(new BigInteger(1, hash.digest()).toString(16));
+        return hex(hash.digest());
     }
 
     public String hash(byte[] data) {
-        return pad(new BigInteger(1, get().digest(data)).toString(16));
+        return hex(local().digest(data));
+    }
+
+    public String hex(byte[] digest) {
+        return pad(toHex(digest));
     }
 
     public String pad(String hash) {
         return (pad + hash).substring(hash.length());
     }
+
+    private static String toHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int x = 0; x < data.length; x++) {
+            chars[x * 2] = HEX[(data[x] >> 4) & 0xF];
+            chars[x * 2 + 1] = HEX[data[x] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static void update(File file, MessageDigest... digests) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                for (MessageDigest digest : digests) {
+                    buffer.rewind();
+                    digest.update(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
 }
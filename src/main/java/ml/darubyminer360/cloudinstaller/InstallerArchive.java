@@ -0,0 +1,190 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
+import ml.darubyminer360.cloudinstaller.download.Transfer;
+
+/**
+ * Files bundled in the installer jar, such as the libraries under /maven/ and the data files used by processors.
+ *
+ * The jar is opened once and its entries indexed, instead of asking the classloader for every file.
+ * Entries are hashed while they are extracted, so nothing has to be read back from disk to verify it.
+ * When the installer isn't running from a jar, for example from an IDE, the classloader is used instead.
+ */
+public class InstallerArchive {
+    private static InstallerArchive instance = null;
+
+    private final ZipFile zip;
+    private final Map<String, ZipEntry> entries;
+
+    private InstallerArchive(ZipFile zip, Map<String, ZipEntry> entries) {
+        this.zip = zip;
+        this.entries = entries;
+    }
+
+    public static synchronized InstallerArchive get() {
+        if (instance == null)
+            instance = open();
+        return instance;
+    }
+
+    private static InstallerArchive open() {
+        try {
+            File file = new File(InstallerArchive.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (file.isFile()) {
+                ZipFile zip = new ZipFile(file);
+                Map<String, ZipEntry> entries = new HashMap<>();
+                Enumeration<? extends ZipEntry> itr = zip.entries();
+                while (itr.hasMoreElements()) {
+                    ZipEntry entry = itr.nextElement();
+                    if (!entry.isDirectory() && !entry.getName().endsWith(".class"))
+                        entries.put(entry.getName(), entry);
+                }
+                return new InstallerArchive(zip, entries);
+            }
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        return new InstallerArchive(null, Collections.emptyMap());
+    }
+
+    private static String normalize(String path) {
+        return path.charAt(0) == '/' ? path.substring(1) : path;
+    }
+
+    public boolean contains(String path) {
+        path = normalize(path);
+        return zip != null ? entries.containsKey(path) : InstallerArchive.class.getResource('/' + path) != null;
+    }
+
+    /**
+     * Gets the uncompressed size of the bundled file, or -1 if it isn't known.
+     */
+    public long getSize(String path) {
+        if (zip == null)
+            return -1;
+        ZipEntry entry = entries.get(normalize(path));
+        return entry == null ? -1 : entry.getSize();
+    }
+
+    /**
+     * Opens the bundled file, or returns null if there is no such file.
+     */
+    public InputStream open(String path) throws IOException {
+        path = normalize(path);
+        if (zip == null)
+            return InstallerArchive.class.getResourceAsStream('/' + path);
+        ZipEntry entry = entries.get(path);
+        return entry == null ? null : zip.getInputStream(entry);
+    }
+
+    /**
+     * Extracts the bundled file over the target, hashing it on the way.
+     * The hash is recorded in the {@link HashIndex}, so later checks of the target don't read it again.
+     *
+     * @return The SHA-1 of the extracted file, or null if there is no such file
+     */
+    public String extract(String path, File target) throws IOException {
+        try (InputStream input = open(path)) {
+            if (input == null)
+                return null;
+
+            if (!target.getParentFile().exists())
+                target.getParentFile().mkdirs();
+
+            MessageDigest digest = HashFunction.SHA1.get();
+            File temp = Transfer.getTemp(target, ".tmp");
+            try (OutputStream output = Files.newOutputStream(temp.toPath())) {
+                Transfer.copy(input, output, digest);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            Transfer.moveIntoPlace(temp, target);
+
+            String sha1 = HashFunction.SHA1.hex(digest.digest());
+            HashIndex.record(target, sha1);
+            return sha1;
+        }
+    }
+
+    /**
+     * Extracts several bundled files at the same time.
+     *
+     * @param files Bundled path to target file
+     * @return The paths that could not be extracted
+     */
+    public List<String> extractAll(Map<String, File> files, int threads) {
+        List<String> failed = new ArrayList<>();
+        if (files.isEmpty())
+            return failed;
+
+        AtomicInteger count = new AtomicInteger(1);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())), r -> {
+            Thread thread = new Thread(r, "Installer Extractor #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, Future<String>> tasks = new HashMap<>();
+            for (Map.Entry<String, File> e : files.entrySet())
+                tasks.put(e.getKey(), executor.submit(() -> extract(e.getKey(), e.getValue())));
+
+            for (String path : files.keySet()) {
+                try {
+                    if (tasks.get(path).get() == null) {
+                        System.out.println("File not found in installer archive: " + path);
+                        failed.add(path);
+                    }
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failed.add(path);
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            failed.clear();
+            failed.addAll(files.keySet());
+        } finally {
+            executor.shutdown();
+        }
+        return failed;
+    }
+}
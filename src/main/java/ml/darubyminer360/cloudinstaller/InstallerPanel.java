@@ -390,7 +390,11 @@ public class InstallerPanel extends JPanel {
 
         dialog = optionPane.createDialog("Mod system installer");
         dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        // Most users keep the defaults, so get a head start on the downloads while they look
+        SpeculativePrefetch prefetch = SpeculativePrefetch.start(profile, targetDir, monitor, SimpleInstaller.prefetchRate * 1024L);
         dialog.setVisible(true);
+        if (prefetch != null)
+            prefetch.cancel();
         int result = (Integer) (optionPane.getValue() != null ? optionPane.getValue() : -1);
         if (result == JOptionPane.OK_OPTION)
         {
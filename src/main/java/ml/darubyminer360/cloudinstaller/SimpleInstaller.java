@@ -25,7 +25,11 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
@@ -36,27 +40,76 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import ml.darubyminer360.cloudinstaller.actions.Actions;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan;
 import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.LibraryIndex;
+import ml.darubyminer360.cloudinstaller.download.Materializer;
+import ml.darubyminer360.cloudinstaller.download.MirrorSelector;
+import ml.darubyminer360.cloudinstaller.download.ProcessorCache;
+import ml.darubyminer360.cloudinstaller.download.RetryPolicy;
+import ml.darubyminer360.cloudinstaller.download.SegmentedDownload;
 import ml.darubyminer360.cloudinstaller.json.Util;
 import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Lockfile;
 
 public class SimpleInstaller
 {
     public static boolean headless = false;
     public static boolean debug = false;
     public static URL mirror = null;
+    public static int downloadThreads = 8;
+    public static boolean processorDaemon = false;
+    public static int prefetchRate = 2048;
+    public static int processorThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    public static List<File> libraryDirs = new ArrayList<>();
+    public static Lockfile lockfile = null;
 
     public static void main(String[] args) throws IOException, URISyntaxException
     {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> serverInstallOption = parser.accepts("installServer", "Install a server to the current directory").withOptionalArg().ofType(File.class).defaultsTo(new File("."));
+        OptionSpec<File> extractOption = parser.accepts("extract", "Extract the contained jar file to the specified directory").withOptionalArg().ofType(File.class).defaultsTo(new File("."));
+        OptionSpec<File> planOption = parser.acceptsAll(Arrays.asList("plan", "dry-run"), "Don't install anything, write what the install would do as JSON to the specified file, or the console. Plans a client install unless --installServer or --extract is given").withOptionalArg().ofType(File.class);
+        OptionSpec<File> lockfileOption = parser.accepts("lockfile", "Install exactly what a previous install of this profile resolved, skipping the mirror list and version manifest requests").withRequiredArg().ofType(File.class);
+        OptionSpec<Void> helpOption = parser.acceptsAll(Arrays.asList("h", "help"),"Help with this installer");
+        OptionSpec<Void> offlineOption = parser.accepts("offline", "Don't attempt any network calls");
+        OptionSpec<Void> debugOption = parser.accepts("debug", "Run in debug mode -- don't delete any files");
+        OptionSpec<URL> mirrorOption = parser.accepts("mirror", "Use a specific mirror URL").withRequiredArg().ofType(URL.class);
+        OptionSpec<File> cacheDirOption = parser.accepts("cacheDir", "Directory of the shared library cache used by all installs on this machine").withRequiredArg().ofType(File.class).defaultsTo(ArtifactCache.getRoot());
+        OptionSpec<Long> cacheSizeOption = parser.accepts("cacheSize", "Maximum size of the shared library cache in megabytes").withRequiredArg().ofType(Long.class).defaultsTo(4096L);
+        OptionSpec<Void> noCacheOption = parser.accepts("noCache", "Don't use the shared library cache");
+        OptionSpec<Void> noMirrorStatsOption = parser.accepts("noMirrorStats", "Don't keep mirror speed measurements between installs");
+        OptionSpec<Void> noLibraryDirCacheOption = parser.accepts("noLibraryDirCache", "Don't keep the listings of --libraryDir directories between installs");
+        OptionSpec<Integer> retriesOption = parser.accepts("retries", "Number of times a download is attempted before moving on to the next source").withRequiredArg().ofType(Integer.class).defaultsTo(RetryPolicy.getAttempts());
+        OptionSpec<Integer> segmentsOption = parser.accepts("downloadSegments", "Number of connections used for each large file, 1 disables segmented downloads").withRequiredArg().ofType(Integer.class).defaultsTo(SegmentedDownload.getSegments());
+        OptionSpec<File> libraryDirOption = parser.accepts("libraryDir", "Additional local maven repository or libraries directory to copy libraries from, can be repeated").withRequiredArg().ofType(File.class);
+        OptionSpec<Void> linkLibrariesOption = parser.accepts("linkLibraries", "Hard link libraries found in local library directories instead of copying them. Only use this if nothing writes to those files");
+        OptionSpec<Void> noProcessorCacheOption = parser.accepts("noProcessorCache", "Always run processors instead of reusing the outputs of identical runs from the shared cache");
+        OptionSpec<Void> noCacheLinksOption = parser.accepts("noCacheLinks", "Copy files out of the shared library cache instead of hard linking them");
+        OptionSpec<Integer> downloadThreadsOption = parser.accepts("downloadThreads", "Number of libraries to download at the same time").withRequiredArg().ofType(Integer.class).defaultsTo(downloadThreads);
+        OptionSpec<Integer> processorThreadsOption = parser.accepts("processorThreads", "Number of processors that may run at the same time, 1 runs them one after another").withRequiredArg().ofType(Integer.class).defaultsTo(processorThreads);
+        OptionSpec<Integer> prefetchRateOption = parser.accepts("prefetchRate", "Bandwidth in KB/s used to download files in the background while the installer window is open, 0 disables it").withRequiredArg().ofType(Integer.class).defaultsTo(prefetchRate);
+        OptionSpec<Void> processorDaemonOption = parser.accepts("processorDaemon", "Run processors in a background JVM that is kept warm and shared by later installs, it exits on its own when idle");
+        OptionSet optionSet = parser.parse(args);
+
+        if (optionSet.has(helpOption)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        // A plan written to the console must be the only thing on stdout, so the log goes to stderr instead
+        PrintStream stdout = System.out;
+        PrintStream console = optionSet.has(planOption) && optionSet.valueOf(planOption) == null ? System.err : System.out;
         ProgressCallback monitor;
         try
         {
-            monitor = ProgressCallback.withOutputs(System.out, getLog());
+            monitor = ProgressCallback.withOutputs(console, getLog());
         }
         catch (FileNotFoundException e)
         {
             e.printStackTrace();
-            monitor = ProgressCallback.withOutputs(System.out);
+            monitor = ProgressCallback.withOutputs(console);
         }
         hookStdOut(monitor);
 
@@ -78,34 +131,39 @@ public class SimpleInstaller
             return;
         }
 
-        OptionParser parser = new OptionParser();
-        OptionSpec<File> serverInstallOption = parser.accepts("installServer", "Install a server to the current directory").withOptionalArg().ofType(File.class).defaultsTo(new File("."));
-        OptionSpec<File> extractOption = parser.accepts("extract", "Extract the contained jar file to the specified directory").withOptionalArg().ofType(File.class).defaultsTo(new File("."));
-        OptionSpec<Void> helpOption = parser.acceptsAll(Arrays.asList("h", "help"),"Help with this installer");
-        OptionSpec<Void> offlineOption = parser.accepts("offline", "Don't attempt any network calls");
-        OptionSpec<Void> debugOption = parser.accepts("debug", "Run in debug mode -- don't delete any files");
-        OptionSpec<URL> mirrorOption = parser.accepts("mirror", "Use a specific mirror URL").withRequiredArg().ofType(URL.class);
-        OptionSet optionSet = parser.parse(args);
-
-        if (optionSet.has(helpOption)) {
-            parser.printHelpOn(System.out);
-            return;
-        }
-
         debug = optionSet.has(debugOption);
         if (optionSet.has(mirrorOption)) {
             mirror = optionSet.valueOf(mirrorOption);
         }
+        downloadThreads = Math.max(1, optionSet.valueOf(downloadThreadsOption));
+        processorThreads = Math.max(1, optionSet.valueOf(processorThreadsOption));
+        processorDaemon = optionSet.has(processorDaemonOption);
+        prefetchRate = Math.max(0, optionSet.valueOf(prefetchRateOption));
+        libraryDirs = new ArrayList<>(optionSet.valuesOf(libraryDirOption));
+        if (optionSet.has(lockfileOption)) {
+            try {
+                lockfile = Lockfile.load(optionSet.valueOf(lockfileOption));
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                monitor.stage("Failed to read lockfile: " + optionSet.valueOf(lockfileOption));
+                return;
+            }
+        }
+        Materializer.setSharedMode(optionSet.has(linkLibrariesOption) ? Materializer.Mode.LINK : Materializer.Mode.COPY);
+        Materializer.setCacheMode(optionSet.has(noCacheLinksOption) ? Materializer.Mode.COPY : Materializer.Mode.LINK);
+        ArtifactCache.configure(optionSet.valueOf(cacheDirOption), optionSet.valueOf(cacheSizeOption) * 1024 * 1024);
+        ArtifactCache.setEnabled(!optionSet.has(noCacheOption));
+        MirrorSelector.setPersistent(!optionSet.has(noMirrorStatsOption));
+        LibraryIndex.setPersistent(!optionSet.has(noLibraryDirCacheOption));
+        ProcessorCache.setEnabled(!optionSet.has(noProcessorCacheOption));
+        RetryPolicy.setAttempts(optionSet.valueOf(retriesOption));
+        SegmentedDownload.setSegments(optionSet.valueOf(segmentsOption));
 
         if (optionSet.has(offlineOption))
         {
             DownloadUtils.OFFLINE_MODE = true;
             monitor.message("ENABLING OFFLINE MODE");
         }
-        else
-        {
-            FixSSL.fixup(monitor);
-        }
 
         Actions action = null;
         File target = null;
@@ -115,6 +173,32 @@ public class SimpleInstaller
         } else if (optionSet.has(extractOption)) {
             action = Actions.EXTRACT;
             target = optionSet.valueOf(extractOption);
+        } else if (optionSet.has(planOption)) {
+            action = Actions.CLIENT;
+            target = getMCDir();
+        }
+
+        InstallV1 install;
+        try
+        {
+            install = Util.loadInstallProfile();
+        }
+        catch (Throwable e)
+        {
+            e.printStackTrace();
+            monitor.stage("Failed to read the install profile, install cannot continue");
+            if (action == null)
+                JOptionPane.showMessageDialog(null, "Something went wrong while installing.<br />Check log for more details:<br/>" + e.toString(), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            return;
+        }
+        // Extracting only needs files from the installer itself, so it skips the SSL fixup and the network entirely
+        StartupPrefetch.start(install, monitor, !DownloadUtils.OFFLINE_MODE && action != Actions.EXTRACT);
+
+        if (optionSet.has(planOption))
+        {
+            SimpleInstaller.headless = true;
+            System.exit(writePlan(monitor, action, install, target, installer, optionSet.valueOf(planOption), stdout) ? 0 : 1);
         }
 
         if (action != null)
@@ -123,7 +207,6 @@ public class SimpleInstaller
             {
                 SimpleInstaller.headless = true;
                 monitor.message("Target Directory: " + target);
-                InstallV1 install = Util.loadInstallProfile();
                 if (!action.getAction(install, monitor).run(target, a -> true, installer))
                 {
                     monitor.stage("There was an error during installation");
@@ -143,7 +226,7 @@ public class SimpleInstaller
             }
         }
         else
-            launchGui(monitor, installer);
+            launchGui(monitor, install, installer);
     }
 
     public static File getMCDir()
@@ -158,7 +241,29 @@ public class SimpleInstaller
         return new File(userHomeDir, mcDir);
     }
 
-    private static void launchGui(ProgressCallback monitor, File installer)
+    private static boolean writePlan(ProgressCallback monitor, Actions action, InstallV1 install, File target, File installer, File output, PrintStream stdout)
+    {
+        try
+        {
+            monitor.message("Planning " + action.name().toLowerCase(Locale.ENGLISH) + " install into: " + target);
+            InstallPlan plan = action.getAction(install, monitor).plan(target, a -> true, installer);
+            String json = Util.GSON.toJson(plan);
+            if (output == null)
+                stdout.println(json);
+            else
+                Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            monitor.message(String.format("%d files, %d bytes to download", plan.getEntries().size(), plan.getDownloadBytes()));
+            return plan.isComplete();
+        }
+        catch (Throwable e)
+        {
+            e.printStackTrace();
+            monitor.stage("Failed to plan the install");
+            return false;
+        }
+    }
+
+    private static void launchGui(ProgressCallback monitor, InstallV1 profile, File installer)
     {
         try
         {
@@ -169,7 +274,6 @@ public class SimpleInstaller
         }
 
         try {
-            InstallV1 profile = Util.loadInstallProfile();
             InstallerPanel panel = new InstallerPanel(getMCDir(), profile, installer);
             panel.run(monitor);
         } catch (Throwable e) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.MetadataCache;
+import ml.darubyminer360.cloudinstaller.download.PartialDownload;
+import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Manifest;
+import ml.darubyminer360.cloudinstaller.json.Util;
+import ml.darubyminer360.cloudinstaller.json.Version;
+import ml.darubyminer360.cloudinstaller.json.Version.Download;
+import ml.darubyminer360.cloudinstaller.json.Version.Library;
+
+/**
+ * Downloads what a client install will need while the user is still looking at the installer window.
+ *
+ * Files are fetched one at a time, at a limited rate so the machine stays usable, into a staging folder of the
+ * shared cache. Once a file is verified against its checksum it is added to the cache, where the real install finds
+ * it like any other cached file. A file that is still being fetched when the install starts is handed over to the
+ * install, which resumes it. Nothing is written to the install target, so a canceled install leaves no trace there.
+ */
+public class SpeculativePrefetch {
+    // Staged files nobody resumed for this long are thrown away
+    private static final long STALE_AGE = TimeUnit.DAYS.toMillis(1);
+    // Checksums of the files being fetched right now, they can't be handed over yet
+    private static final Set<String> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    private final InstallV1 profile;
+    private final File targetDir;
+    private final ProgressCallback monitor;
+    private final long rate;
+    private final Thread thread;
+    private volatile boolean canceled = false;
+    private long started;
+    private long transferred = 0;
+    private int files = 0;
+
+    private SpeculativePrefetch(InstallV1 profile, File targetDir, ProgressCallback monitor, long rate) {
+        this.profile = profile;
+        this.targetDir = targetDir;
+        this.monitor = monitor;
+        this.rate = rate;
+        this.thread = new Thread(this::run, "Speculative Prefetch");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Starts prefetching in the background.
+     *
+     * @param rate Maximum bandwidth in bytes per second
+     * @return The running prefetch, or null if there is nowhere to stage files or nothing may be downloaded
+     */
+    public static SpeculativePrefetch start(InstallV1 profile, File targetDir, ProgressCallback monitor, long rate) {
+        if (rate <= 0 || DownloadUtils.OFFLINE_MODE || !ArtifactCache.isEnabled())
+            return null;
+        SpeculativePrefetch prefetch = new SpeculativePrefetch(profile, targetDir, monitor, rate);
+        prefetch.thread.start();
+        return prefetch;
+    }
+
+    /**
+     * Stops prefetching and waits a moment for the current file to be abandoned. Files that were already verified stay in the cache.
+     */
+    public void cancel() {
+        canceled = true;
+        thread.interrupt();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a partly prefetched file over to the install, so it is resumed instead of downloaded from the start.
+     */
+    public static void handOver(String sha1, File target) {
+        if (!ACTIVE.contains(sha1))
+            PartialDownload.handOver(getStaged(sha1), target);
+    }
+
+    private static File getStaged(String sha1) {
+        return new File(ArtifactCache.getRoot(), "staging/" + sha1);
+    }
+
+    private void run() {
+        File[] staged = new File(ArtifactCache.getRoot(), "staging").listFiles();
+        if (staged != null) {
+            for (File file : staged) {
+                if (System.currentTimeMillis() - file.lastModified() > STALE_AGE)
+                    file.delete();
+            }
+        }
+
+        StartupPrefetch startup = StartupPrefetch.get(profile);
+        if (startup != null)
+            startup.awaitNetwork();
+
+        started = System.nanoTime();
+        for (Map.Entry<String, Download> entry : getDownloads(startup).entrySet()) {
+            if (canceled)
+                break;
+            if (fetch(entry.getKey(), entry.getValue()))
+                files++;
+        }
+        if (files > 0) {
+            monitor.message(String.format("Prefetched %d files (%d KB) while the installer window was open", files, transferred / 1024));
+            ArtifactCache.save();
+        }
+    }
+
+    /**
+     * Gets the files a client install into the target would download, the minecraft jar first since it is the largest.
+     */
+    private Map<String, Download> getDownloads(StartupPrefetch startup) {
+        Map<String, Download> downloads = new LinkedHashMap<>();
+        boolean locked = SimpleInstaller.lockfile != null && SimpleInstaller.lockfile.matches(profile);
+
+        File clientTarget = new File(targetDir, "versions/" + profile.getMinecraft() + '/' + profile.getMinecraft() + ".jar");
+        if (!clientTarget.exists()) {
+            Download client = locked ? SimpleInstaller.lockfile.getDownload("minecraft:client") : null;
+            if (client == null && startup != null) {
+                Version vanilla = getVanillaVersion(startup.getManifest().exceptionally(e -> null).join());
+                client = vanilla == null ? null : vanilla.getDownload("client");
+            }
+            if (client != null)
+                downloads.put("minecraft client", client);
+        }
+
+        Version version = startup == null ? Util.loadVersion(profile) : startup.getVersion().exceptionally(e -> null).join();
+        List<Library> libraries = new ArrayList<>();
+        if (version != null)
+            libraries.addAll(Arrays.asList(version.getLibraries()));
+        libraries.addAll(Arrays.asList(profile.getLibraries()));
+        if (locked)
+            libraries.replaceAll(SimpleInstaller.lockfile::apply);
+
+        InstallerArchive archive = InstallerArchive.get();
+        for (Library lib : libraries) {
+            Download download = lib.getDownloads() == null ? null : lib.getDownloads().getArtifact();
+            if (download == null || lib.getName().getLocalPath(new File(targetDir, "libraries")).exists() || archive.contains("/maven/" + lib.getName().getPath()))
+                continue;
+            downloads.putIfAbsent(lib.getName().getDescriptor(), download);
+        }
+        return downloads;
+    }
+
+    private Version getVanillaVersion(Manifest manifest) {
+        String url = manifest == null ? null : manifest.getUrl(profile.getMinecraft());
+        byte[] data = url == null ? null : MetadataCache.get(url, MetadataCache.VERSION_AGE, false);
+        if (data == null)
+            return null;
+        try {
+            return Util.GSON.fromJson(new String(data, StandardCharsets.UTF_8), Version.class);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private boolean fetch(String name, Download download) {
+        String sha1 = download.getSha1();
+        if (sha1 == null || !download.hasUrl() || ArtifactCache.contains(sha1))
+            return false;
+
+        File staged = getStaged(sha1);
+        staged.getParentFile().mkdirs();
+        ACTIVE.add(sha1);
+        try {
+            MessageDigest digest = HashFunction.SHA1.get();
+            File part = PartialDownload.fetch(monitor, download.getUrl(), staged, digest, this::throttle);
+            if ((download.getSize() > 0 && part.length() != download.getSize()) || !sha1.equals(HashFunction.SHA1.hex(digest.digest()))) {
+                monitor.message("Prefetch of " + name + " failed: Checksum invalid");
+                PartialDownload.discard(staged);
+                return false;
+            }
+            ArtifactCache.store(sha1, part);
+            PartialDownload.discard(staged);
+            return true;
+        } catch (InterruptedIOException e) {
+            // The partial file is kept for the install to resume
+            return false;
+        } catch (IOException e) {
+            // Logged only, the install downloads it again with retries and mirrors, resuming what is here
+            monitor.message("Prefetch of " + name + " failed: " + e.toString());
+            return false;
+        } finally {
+            ACTIVE.remove(sha1);
+        }
+    }
+
+    /**
+     * Accounts for the bytes just read, sleeping for as long as it takes to get back under the rate limit.
+     */
+    private void throttle(int count) throws InterruptedIOException {
+        if (canceled)
+            throw new InterruptedIOException("Prefetch canceled");
+        transferred += count;
+        long wait = started + transferred * 1_000_000_000L / rate - System.nanoTime();
+        if (wait <= 0)
+            return;
+        try {
+            Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Prefetch canceled");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.HttpTransport;
+import ml.darubyminer360.cloudinstaller.download.MetadataCache;
+import ml.darubyminer360.cloudinstaller.json.Install;
+import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Manifest;
+import ml.darubyminer360.cloudinstaller.json.Mirror;
+import ml.darubyminer360.cloudinstaller.json.Util;
+import ml.darubyminer360.cloudinstaller.json.Version;
+
+/**
+ * Work every install needs before it can download anything, started as soon as the install profile is read.
+ *
+ * The version json is parsed while the SSL fixup runs, and once that is done the http client is created and the
+ * mirror list and vanilla manifest are fetched side by side. Actions take the results from here instead of
+ * loading them on first use. The mirror list and manifest are kept by {@link Install#getMirrors} and the
+ * metadata cache, so later callers just get the finished copy.
+ */
+public class StartupPrefetch {
+    private static StartupPrefetch current = null;
+
+    private final InstallV1 profile;
+    private final CompletableFuture<Void> network;
+    private final CompletableFuture<Version> version;
+    private final CompletableFuture<List<Mirror>> mirrors;
+    private final CompletableFuture<Manifest> manifest;
+
+    private StartupPrefetch(InstallV1 profile, CompletableFuture<Void> network, CompletableFuture<Version> version, CompletableFuture<List<Mirror>> mirrors, CompletableFuture<Manifest> manifest) {
+        this.profile = profile;
+        this.network = network;
+        this.version = version;
+        this.mirrors = mirrors;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Starts fetching everything for the profile. Options that affect downloads must already be set.
+     *
+     * @param online If false only the version json is loaded, and the SSL fixup is skipped
+     */
+    public static synchronized StartupPrefetch start(InstallV1 profile, ProgressCallback monitor, boolean online) {
+        AtomicInteger count = new AtomicInteger(1);
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Startup Prefetch #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        CompletableFuture<Version> version = CompletableFuture.supplyAsync(() -> Util.loadVersion(profile), executor);
+        CompletableFuture<Void> network;
+        CompletableFuture<List<Mirror>> mirrors;
+        CompletableFuture<Manifest> manifest;
+        if (!online) {
+            network = CompletableFuture.completedFuture(null);
+            mirrors = CompletableFuture.completedFuture(null);
+            manifest = CompletableFuture.completedFuture(null);
+        } else {
+            // Everything on the network has to wait for the SSL fixup, it replaces the http client
+            network = CompletableFuture.runAsync(() -> {
+                FixSSL.fixup(monitor);
+                HttpTransport.getClient();
+            }, executor);
+            mirrors = network.thenApplyAsync(v -> profile.getMirrors(), executor);
+            if (SimpleInstaller.lockfile != null && SimpleInstaller.lockfile.matches(profile))
+                manifest = network.thenApply(v -> null); // The lockfile already knows where the vanilla jars are
+            else
+                manifest = network.thenApplyAsync(v -> fetchManifest(profile), executor);
+        }
+        executor.shutdown();
+
+        current = new StartupPrefetch(profile, network, version, mirrors, manifest);
+        return current;
+    }
+
+    /**
+     * Gets the prefetch started for the specified profile, or null if there isn't one.
+     */
+    public static synchronized StartupPrefetch get(Install profile) {
+        return current != null && current.profile == profile ? current : null;
+    }
+
+    private static Manifest fetchManifest(InstallV1 profile) {
+        Manifest manifest = DownloadUtils.downloadManifest();
+        String url = manifest == null ? null : manifest.getUrl(profile.getMinecraft());
+        if (url != null)
+            MetadataCache.get(url, MetadataCache.VERSION_AGE, false);
+        return manifest;
+    }
+
+    /**
+     * Waits for the SSL fixup, if it is still running. Anything that goes to the network before an action runs must call this.
+     */
+    public void awaitNetwork() {
+        network.exceptionally(e -> null).join();
+    }
+
+    public CompletableFuture<Version> getVersion() {
+        return version;
+    }
+
+    public CompletableFuture<List<Mirror>> getMirrors() {
+        return mirrors;
+    }
+
+    public CompletableFuture<Manifest> getManifest() {
+        return manifest;
+    }
+}
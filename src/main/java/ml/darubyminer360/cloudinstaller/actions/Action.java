@@ -17,19 +17,36 @@
 package ml.darubyminer360.cloudinstaller.actions;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 
 import javax.swing.JOptionPane;
 
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
 import ml.darubyminer360.cloudinstaller.SimpleInstaller;
+import ml.darubyminer360.cloudinstaller.StartupPrefetch;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan.Source;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
+import ml.darubyminer360.cloudinstaller.download.HttpTransport;
+import ml.darubyminer360.cloudinstaller.download.LibraryIndex;
+import ml.darubyminer360.cloudinstaller.download.MirrorSelector;
 import ml.darubyminer360.cloudinstaller.json.Artifact;
 import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Lockfile;
 import ml.darubyminer360.cloudinstaller.json.Util;
 import ml.darubyminer360.cloudinstaller.json.Version;
+import ml.darubyminer360.cloudinstaller.json.Version.Download;
 import ml.darubyminer360.cloudinstaller.json.Version.Library;
 import ml.darubyminer360.cloudinstaller.json.Version.LibraryDownload;
 
@@ -38,13 +55,32 @@ public abstract class Action {
     protected final ProgressCallback monitor;
     protected final PostProcessors processors;
     protected final Version version;
-    private List<Artifact> grabbed = new ArrayList<>();
+    private List<Artifact> grabbed = Collections.synchronizedList(new ArrayList<>());
+    // What this install resolved, written once it succeeds
+    private final Lockfile resolved;
+    // The lockfile given on the command line, if it belongs to this profile
+    private final Lockfile locked;
+    private LibraryDownloader downloader;
+    private List<Library> libraries;
+    private Predicate<String> optionals;
+    private volatile boolean canceled = false;
 
     protected Action(InstallV1 profile, ProgressCallback monitor, boolean isClient) {
         this.profile = profile;
         this.monitor = monitor;
         this.processors = new PostProcessors(profile, isClient, monitor);
-        this.version = Util.loadVersion(profile);
+        StartupPrefetch prefetch = StartupPrefetch.get(profile);
+        if (prefetch != null) {
+            this.version = prefetch.getVersion().join();
+            prefetch.awaitNetwork();
+        } else
+            this.version = Util.loadVersion(profile);
+        this.resolved = new Lockfile(profile);
+        if (SimpleInstaller.lockfile != null && !SimpleInstaller.lockfile.matches(profile))
+            monitor.message("Lockfile is for a different profile, ignoring it");
+        this.locked = SimpleInstaller.lockfile != null && SimpleInstaller.lockfile.matches(profile) ? SimpleInstaller.lockfile : null;
+        if (this.locked != null)
+            this.locked.getRedirects().forEach(HttpTransport::addShortcut);
     }
 
     protected void error(String message) {
@@ -54,6 +90,11 @@ public abstract class Action {
     }
 
     public abstract boolean run(File target, Predicate<String> optionals, File installer) throws ActionCanceledException;
+
+    /**
+     * Works out what {@link #run} would do, without changing anything on disk.
+     */
+    public abstract InstallPlan plan(File target, Predicate<String> optionals, File installer);
     public abstract boolean isPathValid(File targetDir);
     public abstract String getFileError(File targetDir);
     public abstract String getSuccessMessage();
@@ -62,51 +103,220 @@ public abstract class Action {
         return profile.getMirror() != null ? String.format(SimpleInstaller.headless ? "Data kindly mirrored by %2$s at %1$s" : "<html><a href=\'%s\'>Data kindly mirrored by %s</a></html>", profile.getMirror().getHomepage(), profile.getMirror().getName()) : null;
     }
 
-    protected boolean downloadLibraries(File librariesDir, Predicate<String> optionals, List<File> additionalLibDirs) throws ActionCanceledException {
+    /**
+     * Adds the stages that rank the mirrors, queue the libraries and wait for them: "mirrors", "queue libraries" and "libraries".
+     * Work that only needs some of the libraries can depend on "queue libraries" and use {@link #getPendingLibraries}.
+     */
+    protected void addLibraryStages(StageGraph graph, File librariesDir, Predicate<String> optionals, List<File> additionalLibDirs) {
+        graph.add("mirrors", () -> {
+            if (profile.getMirror() != null)
+                monitor.stage(getSponsorMessage());
+            return true;
+        });
+        graph.add("queue libraries", () -> {
+            startLibraries(librariesDir, optionals, additionalLibDirs);
+            return true;
+        }, "mirrors");
+        graph.add("libraries", this::finishLibraries, "queue libraries");
+        graph.onCancel(() -> canceled = true);
+    }
+
+    private void startLibraries(File librariesDir, Predicate<String> optionals, List<File> additionalLibDirs) {
         monitor.start("Downloading libraries");
-        String userHome = System.getProperty("user.home");
-        if (userHome != null && !userHome.isEmpty()) {
-            File mavenLocalHome = new File(userHome, ".m2/repository");
-            if (mavenLocalHome.exists()) {
-                additionalLibDirs.add(mavenLocalHome);
-            }
-        }
+        addLibraryDirs(additionalLibDirs);
         monitor.message(String.format("Found %d additional library directories", additionalLibDirs.size()));
+        if (!additionalLibDirs.isEmpty())
+            LibraryIndex.get(additionalLibDirs); // Starts listing them while the downloads are queued
 
-        List<Library> libraries = new ArrayList<>();
-        libraries.addAll(Arrays.asList(version.getLibraries()));
-        libraries.addAll(Arrays.asList(processors.getLibraries()));
+        libraries = prioritize(getLibraries());
+        this.optionals = optionals;
 
-        StringBuilder output = new StringBuilder();
-        final double steps = libraries.size();
-        int progress = 1;
+        downloader = new LibraryDownloader(monitor, profile::getMirror, librariesDir, optionals, grabbed, additionalLibDirs, SimpleInstaller.downloadThreads, () -> canceled);
+        for (Library lib : libraries)
+            downloader.submit(lib);
+    }
 
-        for (Library lib : libraries) {
-            checkCancel();
-            monitor.progress(progress++ / steps);
-            if (!DownloadUtils.downloadLibrary(monitor, profile.getMirror(), lib, librariesDir, optionals, grabbed, additionalLibDirs)) {
-                LibraryDownload download = lib.getDownloads() == null ? null :  lib.getDownloads().getArtifact();
-                if (download != null && !download.getUrl().isEmpty()) // If it doesn't have a URL we can't download it, assume we install it later
-                    output.append('\n').append(lib.getName());
-            }
+    /**
+     * Gets the libraries that are being downloaded by the files they will be in, see {@link PostProcessors#process}.
+     */
+    protected Map<Path, CompletableFuture<Boolean>> getPendingLibraries() {
+        return downloader == null ? Collections.emptyMap() : downloader.getPending();
+    }
+
+    private boolean finishLibraries() throws ActionCanceledException {
+        StringBuilder output = new StringBuilder();
+        for (Library lib : downloader.await()) {
+            LibraryDownload download = lib.getDownloads() == null ? null :  lib.getDownloads().getArtifact();
+            if (download != null && download.hasUrl()) // If it doesn't have a URL we can't download it, assume we install it later
+                output.append('\n').append(lib.getName());
         }
+        ArtifactCache.save();
+        MirrorSelector.save();
+        LibraryIndex.save();
+        HashIndex.save();
+
         String bad = output.toString();
         if (!bad.isEmpty()) {
             error("These libraries failed to download. Try again.\n" + bad);
             return false;
         }
+
+        for (Library lib : libraries) {
+            LibraryDownload download = lib.getDownloads() == null ? null : lib.getDownloads().getArtifact();
+            if (download != null && download.getSha1() != null && download.hasUrl() && optionals.test(lib.getName().getDescriptor()))
+                record(lib.getName().getDescriptor(), download);
+        }
         return true;
     }
 
+    /**
+     * Gets the download recorded for the key in the lockfile given on the command line, or null.
+     */
+    protected Download getLockedDownload(String key) {
+        return locked == null ? null : locked.getDownload(key);
+    }
+
+    /**
+     * Records a resolved download for the lockfile written when the install succeeds.
+     */
+    protected synchronized void record(String key, Download download) {
+        resolved.put(key, download.getUrl(), HttpTransport.getFinalUrl(download.getUrl()), download.getSha1(), download.getSize());
+    }
+
+    protected void saveLockfile(File file) {
+        resolved.setMirror(profile.getMirror());
+        try {
+            resolved.save(file);
+            monitor.message("Wrote lockfile: " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            monitor.message("Failed to write lockfile: " + e.toString());
+        }
+    }
+
+    /**
+     * Adds the libraries the stages from {@link #addLibraryStages} would fetch to the plan.
+     */
+    protected void planLibraries(InstallPlan plan, File librariesDir, Predicate<String> optionals, List<File> additionalLibDirs) {
+        addLibraryDirs(additionalLibDirs);
+        for (Library lib : getLibraries())
+            DownloadUtils.planLibrary(plan, profile.getMirror(), lib, librariesDir, optionals, additionalLibDirs);
+    }
+
+    /**
+     * Adds the vanilla jar to the plan. The version json is only downloaded to a temporary file if it isn't already in place.
+     */
+    protected void planVanilla(InstallPlan plan, String side, File versionJson, File target) {
+        if (target.exists()) {
+            plan.add("minecraft", side, target, Source.EXISTING, target.length(), null);
+            return;
+        }
+
+        Download locked = getLockedDownload("minecraft:" + side);
+        if (locked != null) {
+            DownloadUtils.planDownload(plan, "minecraft", side, locked, target);
+            return;
+        }
+
+        Version vanilla;
+        if (versionJson.exists()) {
+            vanilla = Util.getVanillaVersion(profile.getMinecraft(), versionJson);
+        } else {
+            try {
+                File temp = Files.createTempDirectory("installer_plan").toFile();
+                File json = new File(temp, versionJson.getName());
+                vanilla = Util.getVanillaVersion(profile.getMinecraft(), json);
+                json.delete();
+                temp.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+                vanilla = null;
+            }
+        }
+
+        Download download = vanilla == null ? null : vanilla.getDownload(side);
+        if (download == null)
+            plan.add("minecraft", side, target, Source.MISSING, 0, null);
+        else
+            DownloadUtils.planDownload(plan, "minecraft", side, download, target);
+    }
+
+    /**
+     * Gets every library the install needs, once each. The same artifact is often listed by both the version json and
+     * the processors, possibly with different download info, so entries for the same file are merged.
+     */
+    private List<Library> getLibraries() {
+        Map<String, Library> libraries = new LinkedHashMap<>();
+        List<Library> all = new ArrayList<>();
+        all.addAll(Arrays.asList(version.getLibraries()));
+        all.addAll(Arrays.asList(processors.getLibraries()));
+        for (Library lib : all) {
+            if (locked != null)
+                lib = locked.apply(lib);
+            libraries.merge(lib.getName().getPath(), lib, this::merge);
+        }
+        return new ArrayList<>(libraries.values());
+    }
+
+    /**
+     * Orders the libraries for the download queue. The ones the processors need come first, in the order the processors
+     * run, so they can start while the rest downloads. Within each group the largest files go first, so a big download
+     * doesn't end up as the last thing running.
+     */
+    private List<Library> prioritize(List<Library> libraries) {
+        Map<String, Integer> required = processors.getRequiredArtifacts();
+        List<Library> sorted = new ArrayList<>(libraries);
+        sorted.sort(Comparator.comparingInt((Library lib) -> required.getOrDefault(lib.getName().getPath(), Integer.MAX_VALUE))
+            .thenComparing(Comparator.comparingInt(Action::getSize).reversed()));
+        return sorted;
+    }
+
+    private static int getSize(Library library) {
+        LibraryDownload download = library.getDownloads() == null ? null : library.getDownloads().getArtifact();
+        return download == null ? 0 : download.getSize();
+    }
+
+    private Library merge(Library first, Library second) {
+        LibraryDownload a = first.getDownloads() == null ? null : first.getDownloads().getArtifact();
+        LibraryDownload b = second.getDownloads() == null ? null : second.getDownloads().getArtifact();
+        if (b == null || (a != null && a.getSha1() != null && a.hasUrl())) {
+            if (a != null && b != null && b.getSha1() != null && !b.getSha1().equals(a.getSha1()))
+                monitor.message("Library " + first.getName() + " is listed with different checksums, using " + a.getSha1());
+            return first;
+        }
+        if (a == null)
+            return second;
+
+        String url = a.hasUrl() ? a.getUrl() : b.getUrl(); // Empty rather than null when neither has one
+        return new Library(first.getName(), new LibraryDownload(a.getPath() == null ? b.getPath() : a.getPath(), url,
+            a.getSha1() == null ? b.getSha1() : a.getSha1(), a.getSize() > 0 ? a.getSize() : b.getSize()));
+    }
+
+    private void addLibraryDirs(List<File> additionalLibDirs) {
+        String userHome = System.getProperty("user.home");
+        if (userHome != null && !userHome.isEmpty()) {
+            File mavenLocalHome = new File(userHome, ".m2/repository");
+            if (mavenLocalHome.exists()) {
+                additionalLibDirs.add(mavenLocalHome);
+            }
+        }
+        for (File dir : SimpleInstaller.libraryDirs) {
+            if (dir.isDirectory())
+                additionalLibDirs.add(dir);
+        }
+    }
+
     protected int downloadedCount() {
         return grabbed.size();
     }
 
     protected int getTaskCount() {
-        return profile.getLibraries().length + processors.getTaskCount();
+        return version.getLibraries().length + processors.getTaskCount();
     }
 
     protected void checkCancel() throws ActionCanceledException {
+        if (canceled)
+            throw new ActionCanceledException(new InterruptedException("Install canceled"));
         try {
             Thread.sleep(1);
         } catch (InterruptedException e) {
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects messages from work running on another thread, so they can be written to the real log in one block.
+ */
+class BufferedCallback implements ProgressCallback {
+    private final List<String> messages = new ArrayList<>();
+    private final List<MessagePriority> priorities = new ArrayList<>();
+
+    @Override
+    public void message(String message, MessagePriority priority) {
+        messages.add(message);
+        priorities.add(priority);
+    }
+
+    void flush(ProgressCallback target) {
+        for (int x = 0; x < messages.size(); x++)
+            target.message(messages.get(x), priorities.get(x));
+    }
+}
@@ -19,10 +19,16 @@ package ml.darubyminer360.cloudinstaller.actions;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
 import ml.darubyminer360.cloudinstaller.json.InstallV1;
 import ml.darubyminer360.cloudinstaller.json.Util;
 import ml.darubyminer360.cloudinstaller.json.Version;
@@ -53,24 +59,10 @@ public class ClientInstall extends Action {
         File versionRoot = new File(target, "versions");
         File librariesDir = new File(target, "libraries");
         librariesDir.mkdir();
+        HashIndex.open(target);
 
         checkCancel();
 
-        // Extract version json
-        monitor.stage("Extracting json");
-        try (InputStream stream = Util.class.getResourceAsStream(profile.getJson())) {
-            File json = new File(versionRoot, profile.getVersion() + '/' + profile.getVersion() + ".json");
-            json.getParentFile().mkdirs();
-            Files.copy(stream, json.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            error("  Failed to extract");
-            e.printStackTrace();
-            return false;
-        }
-        checkCancel();
-
-        // Download Vanilla main jar/json
-        monitor.stage("Considering minecraft client jar");
         File versionVanilla = new File(versionRoot, profile.getMinecraft());
         if (!versionVanilla.mkdirs() && !versionVanilla.isDirectory()) {
             if (!versionVanilla.delete()) {
@@ -82,32 +74,13 @@ public class ClientInstall extends Action {
         checkCancel();
 
         File clientTarget = new File(versionVanilla, profile.getMinecraft() + ".jar");
-        if (!clientTarget.exists()) {
-            File versionJson = new File(versionVanilla, profile.getMinecraft() + ".json");
-            Version vanilla = Util.getVanillaVersion(profile.getMinecraft(), versionJson);
-            if (vanilla == null) {
-                error("Failed to download version manifest, can not find client jar URL.");
-                return false;
-            }
+        AtomicReference<Download> client = new AtomicReference<>();
 
-            Download client = vanilla.getDownload("client");
-            if (client == null) {
-                error("Failed to download minecraft client, info missing from manifest: " + versionJson);
-                return false;
-            }
-
-            if (!DownloadUtils.download(monitor, profile.getMirror(), client, clientTarget)) {
-                clientTarget.delete();
-                error("Downloading minecraft client failed, invalid checksum.\n" +
-                      "Try again, or use the vanilla launcher to install the vanilla version.");
-                return false;
-            }
-        }
-
-        // Download Libraries
-        if (!downloadLibraries(librariesDir, optionals, new ArrayList<>()))
-            return false;
-        checkCancel();
+        StageGraph graph = new StageGraph(monitor);
+        graph.add("version json", () -> extractJson(versionRoot));
+        addLibraryStages(graph, librariesDir, optionals, new ArrayList<>());
+        graph.add("manifest", () -> clientTarget.exists() || resolveClient(versionVanilla, client));
+        CompletableFuture<Boolean> vanilla = graph.add("minecraft jar", () -> clientTarget.exists() || downloadClient(client.get(), clientTarget), "manifest", "mirrors");
 
         /*
         String modListType = VersionInfo.getModListType();
@@ -139,20 +112,90 @@ public class ClientInstall extends Action {
         }
         */
 
-        if (!processors.process(librariesDir, clientTarget, target, installer))
-            return false;
+        // Processors start as soon as the files they use are in place, the rest keep downloading meanwhile
+        graph.add("processors", () -> {
+            Map<Path, CompletableFuture<Boolean>> pending = new HashMap<>(getPendingLibraries());
+            pending.put(clientTarget.toPath().toAbsolutePath().normalize(), vanilla);
+            return processors.process(librariesDir, clientTarget, target, installer, pending);
+        }, "queue libraries", "version json");
 
-        checkCancel();
+        graph.add("profile", () -> {
+            monitor.stage("Injecting profile");
+            if (launcherProfiles.exists() && !injectProfile(launcherProfiles))
+                return false;
+            if (launcherProfilesMS.exists() && !injectProfile(launcherProfilesMS))
+                return false;
+            return true;
+        }, "version json", "minecraft jar", "libraries", "processors");
 
-        monitor.stage("Injecting profile");
-        if (launcherProfiles.exists() && !injectProfile(launcherProfiles))
+        if (!graph.run())
             return false;
-        if (launcherProfilesMS.exists() && !injectProfile(launcherProfilesMS))
+
+        saveLockfile(new File(versionRoot, profile.getVersion() + "/installer.lock.json"));
+        return true;
+    }
+
+    private boolean extractJson(File versionRoot) {
+        monitor.stage("Extracting json");
+        try (InputStream stream = Util.class.getResourceAsStream(profile.getJson())) {
+            File json = new File(versionRoot, profile.getVersion() + '/' + profile.getVersion() + ".json");
+            json.getParentFile().mkdirs();
+            Files.copy(stream, json.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            error("  Failed to extract");
+            e.printStackTrace();
             return false;
+        }
+    }
+
+    private boolean resolveClient(File versionVanilla, AtomicReference<Download> result) {
+        monitor.stage("Considering minecraft client jar");
+        Download client = getLockedDownload("minecraft:client");
+        if (client == null) {
+            File versionJson = new File(versionVanilla, profile.getMinecraft() + ".json");
+            Version vanilla = Util.getVanillaVersion(profile.getMinecraft(), versionJson);
+            if (vanilla == null) {
+                error("Failed to download version manifest, can not find client jar URL.");
+                return false;
+            }
+
+            client = vanilla.getDownload("client");
+            if (client == null) {
+                error("Failed to download minecraft client, info missing from manifest: " + versionJson);
+                return false;
+            }
+        }
+        result.set(client);
+        return true;
+    }
 
+    private boolean downloadClient(Download client, File clientTarget) {
+        if (!DownloadUtils.download(monitor, profile.getMirror(), client, clientTarget)) {
+            clientTarget.delete();
+            error("Downloading minecraft client failed, invalid checksum.\n" +
+                  "Try again, or use the vanilla launcher to install the vanilla version.");
+            return false;
+        }
+        record("minecraft:client", client);
         return true;
     }
 
+    @Override
+    public InstallPlan plan(File target, Predicate<String> optionals, File installer) {
+        InstallPlan plan = new InstallPlan("client", target);
+        HashIndex.open(target);
+
+        File versionVanilla = new File(new File(target, "versions"), profile.getMinecraft());
+        File clientTarget = new File(versionVanilla, profile.getMinecraft() + ".jar");
+        planVanilla(plan, "client", new File(versionVanilla, profile.getMinecraft() + ".json"), clientTarget);
+
+        File librariesDir = new File(target, "libraries");
+        planLibraries(plan, librariesDir, optionals, new ArrayList<>());
+        processors.plan(plan, librariesDir, clientTarget, target, installer);
+        return plan;
+    }
+
     private boolean injectProfile(File target) {
         try {
             JsonObject json = null;
@@ -20,6 +20,8 @@ import java.io.File;
 import java.util.function.Predicate;
 
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.InstallerArchive;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan.Source;
 import ml.darubyminer360.cloudinstaller.json.Artifact;
 import ml.darubyminer360.cloudinstaller.json.InstallV1;
 
@@ -79,6 +81,18 @@ public class ExtractAction extends Action {
         return result;
     }
 
+    @Override
+    public InstallPlan plan(File target, Predicate<String> optionals, File installer) {
+        InstallPlan plan = new InstallPlan("extract", target);
+        Artifact contained = profile.getPath();
+        if (contained != null) {
+            InstallerArchive archive = InstallerArchive.get();
+            String path = "/maven/" + contained.getPath();
+            plan.add("installer", contained.getDescriptor(), new File(target, contained.getFilename()), archive.contains(path) ? Source.EMBEDDED : Source.MISSING, Math.max(0, archive.getSize(path)), null);
+        }
+        return plan;
+    }
+
     @Override
     public boolean isPathValid(File targetDir)
     {
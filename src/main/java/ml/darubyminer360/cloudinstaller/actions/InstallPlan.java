@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What an install would do, worked out without changing anything on disk.
+ *
+ * Every file the install needs is listed with where it would come from and how big it is,
+ * and the totals are broken down by source.
+ */
+public class InstallPlan {
+    public enum Source {
+        /** A valid copy is already in place. */
+        EXISTING,
+        /** Bundled in the installer jar. */
+        EMBEDDED,
+        /** Copied from a local library directory. */
+        LOCAL,
+        /** Taken from the shared cache. */
+        CACHE,
+        MIRROR,
+        /** Downloaded from the url in the metadata. */
+        ORIGIN,
+        /** Created by a processor. */
+        PROCESSOR,
+        /** No known way to get it, the install would fail. */
+        MISSING
+    }
+
+    private String action;
+    private String target;
+    private long downloadBytes;
+    private Map<Source, Total> totals = new EnumMap<>(Source.class);
+    private List<Entry> entries = new ArrayList<>();
+
+    public InstallPlan(String action, File target) {
+        this.action = action;
+        this.target = target.getAbsolutePath();
+    }
+
+    /**
+     * Adds a file to the plan.
+     *
+     * @param kind What the file is, for example "library" or "minecraft"
+     * @param size The size in bytes, or 0 if it isn't known
+     */
+    public void add(String kind, String name, File path, Source source, long size, String url) {
+        Entry entry = new Entry();
+        entry.kind = kind;
+        entry.name = name;
+        entry.path = path == null ? null : path.getAbsolutePath();
+        entry.source = source;
+        entry.existing = source == Source.EXISTING;
+        entry.size = size;
+        entry.url = source == Source.MIRROR || source == Source.ORIGIN ? url : null;
+        entries.add(entry);
+
+        Total total = totals.computeIfAbsent(source, k -> new Total());
+        total.count++;
+        total.bytes += size;
+        if (source == Source.MIRROR || source == Source.ORIGIN)
+            downloadBytes += size;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getDownloadBytes() {
+        return downloadBytes;
+    }
+
+    public boolean isComplete() {
+        return !totals.containsKey(Source.MISSING);
+    }
+
+    public static class Entry {
+        private String kind;
+        private String name;
+        private String path;
+        private Source source;
+        private boolean existing;
+        private long size;
+        private String url;
+
+        public String getName() {
+            return name;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private static class Total {
+        private int count;
+        private long bytes;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.json.Artifact;
+import ml.darubyminer360.cloudinstaller.json.Mirror;
+import ml.darubyminer360.cloudinstaller.json.Version.Library;
+import ml.darubyminer360.cloudinstaller.json.Version.LibraryDownload;
+
+/**
+ * Downloads libraries on a bounded pool of worker threads.
+ *
+ * Every library still walks its sources in the usual order (installer jar, local folders, mirror, url),
+ * only different libraries are fetched at the same time. The mirror is picked again for every library, so
+ * one that starts failing part way through is left behind. Log output is buffered per library and written
+ * in one block once it finishes, so the log stays readable.
+ */
+class LibraryDownloader {
+    private final ProgressCallback monitor;
+    private final Supplier<Mirror> mirror;
+    private final File librariesDir;
+    private final Predicate<String> optionals;
+    private final List<Artifact> grabbed;
+    private final List<File> additionalLibDirs;
+    private final ExecutorService executor;
+    private final BooleanSupplier canceled;
+    private final List<Task> tasks = new ArrayList<>();
+    private final Map<String, Task> submittedPaths = new HashMap<>();
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    LibraryDownloader(ProgressCallback monitor, Supplier<Mirror> mirror, File librariesDir, Predicate<String> optionals, List<Artifact> grabbed, List<File> additionalLibDirs, int threads, BooleanSupplier canceled) {
+        this.monitor = monitor;
+        this.mirror = mirror;
+        this.librariesDir = librariesDir;
+        this.optionals = optionals;
+        this.grabbed = grabbed;
+        this.additionalLibDirs = additionalLibDirs;
+        this.canceled = canceled;
+
+        AtomicInteger count = new AtomicInteger(1);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "Library Downloader #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the library, unless one for the same file was already submitted, in which case that download's future is returned.
+     */
+    synchronized CompletableFuture<Boolean> submit(Library library) {
+        Task existing = submittedPaths.get(library.getName().getPath());
+        if (existing != null)
+            return existing.future;
+        submitted.incrementAndGet();
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> download(library), executor);
+        Task task = new Task(library, future);
+        tasks.add(task);
+        submittedPaths.put(library.getName().getPath(), task);
+        return future;
+    }
+
+    /**
+     * Gets the future of every submitted library, by the file it is downloaded to, so work that needs a library can start as soon as it is in place.
+     * Libraries without a url are left out, they are created by processors rather than downloaded.
+     */
+    Map<Path, CompletableFuture<Boolean>> getPending() {
+        Map<Path, CompletableFuture<Boolean>> pending = new HashMap<>();
+        for (Task task : tasks) {
+            LibraryDownload download = task.library.getDownloads() == null ? null : task.library.getDownloads().getArtifact();
+            if (download == null || !download.hasUrl())
+                continue;
+            pending.put(task.library.getName().getLocalPath(librariesDir).toPath().toAbsolutePath().normalize(), task.future);
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for every submitted library and returns the ones that failed, in the order they were submitted.
+     */
+    List<Library> await() throws ActionCanceledException {
+        List<Library> failed = new ArrayList<>();
+        try {
+            for (Task task : tasks) {
+                try {
+                    if (!task.future.get())
+                        failed.add(task.library);
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failed.add(task.library);
+                }
+                // Libraries dropped because of a cancel are not failures
+                if (canceled.getAsBoolean())
+                    throw new InterruptedException("Install canceled");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ActionCanceledException(e);
+        } finally {
+            executor.shutdown();
+        }
+        return failed;
+    }
+
+    private boolean download(Library library) {
+        // Libraries that haven't started yet are dropped once the install is canceled, the ones already running finish
+        if (canceled.getAsBoolean())
+            return false;
+        BufferedCallback log = new BufferedCallback();
+        boolean result;
+        try {
+            result = DownloadUtils.downloadLibrary(log, mirror.get(), library, librariesDir, optionals, grabbed, additionalLibDirs);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            log.message("  Unexpected error: " + e.toString());
+            result = false;
+        }
+        synchronized (monitor) {
+            log.flush(monitor);
+            monitor.progress(finished.incrementAndGet() / (double)submitted.get());
+        }
+        return result;
+    }
+
+    private static class Task {
+        private final Library library;
+        private final CompletableFuture<Boolean> future;
+
+        private Task(Library library, CompletableFuture<Boolean> future) {
+            this.library = library;
+            this.future = future;
+        }
+    }
+}
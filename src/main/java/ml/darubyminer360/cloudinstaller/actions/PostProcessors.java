@@ -23,13 +23,19 @@ import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
@@ -37,7 +43,12 @@ import java.util.stream.Collectors;
 import javax.swing.JOptionPane;
 
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.InstallerArchive;
 import ml.darubyminer360.cloudinstaller.SimpleInstaller;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan.Source;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
+import ml.darubyminer360.cloudinstaller.download.ProcessorCache;
 import ml.darubyminer360.cloudinstaller.json.Artifact;
 import ml.darubyminer360.cloudinstaller.json.Install.Processor;
 import ml.darubyminer360.cloudinstaller.json.InstallV1;
@@ -65,14 +76,94 @@ public class PostProcessors {
         return hasTasks ? profile.getLibraries() : new Library[0];
     }
 
+    /**
+     * Gets the path of every artifact the processors read, their jars, classpaths and artifact arguments,
+     * mapped to the index of the first processor that needs it.
+     */
+    public Map<String, Integer> getRequiredArtifacts() {
+        Map<String, Integer> required = new HashMap<>();
+        for (int i = 0; i < processors.size(); i++) {
+            Processor proc = processors.get(i);
+            required.putIfAbsent(proc.getJar().getPath(), i);
+            for (Artifact dep : proc.getClasspath())
+                required.putIfAbsent(dep.getPath(), i);
+            for (String arg : proc.getArgs()) {
+                if (arg.charAt(0) == '[' && arg.charAt(arg.length() - 1) == ']')
+                    required.putIfAbsent(Artifact.from(arg.substring(1, arg.length() - 1)).getPath(), i);
+            }
+        }
+        return required;
+    }
+
     public int getTaskCount() {
-        return hasTasks ? 0 :
+        return !hasTasks ? 0 :
             profile.getLibraries().length +
             processors.size() +
             profile.getData(isClient).size();
     }
 
+    /**
+     * Adds the files that would be extracted for, and created by, the processors to the plan. Nothing is changed on disk.
+     */
+    public void plan(InstallPlan plan, File librariesDir, File minecraft, File root, File installer) {
+        Map<String, String> tokens = new HashMap<>();
+        for (Entry<String, String> e : data.entrySet()) {
+            String value = e.getValue();
+            if (value.charAt(0) == '[' && value.charAt(value.length() - 1) == ']') { //Artifact
+                tokens.put(e.getKey(), Artifact.from(value.substring(1, value.length() -1)).getLocalPath(librariesDir).getAbsolutePath());
+            } else if (value.charAt(0) == '\'' && value.charAt(value.length() - 1) == '\'') { //Literal
+                tokens.put(e.getKey(), value.substring(1, value.length() -1));
+            } else {
+                // Extracted to a temporary directory when installing
+                InstallerArchive archive = InstallerArchive.get();
+                plan.add("data", value, null, archive.contains(value) ? Source.EMBEDDED : Source.MISSING, Math.max(0, archive.getSize(value)), null);
+                tokens.put(e.getKey(), value);
+            }
+        }
+        addTokens(tokens, librariesDir, minecraft, root, installer);
+
+        for (Processor proc : processors) {
+            for (Entry<String, String> e : proc.getOutputs().entrySet()) {
+                String key = resolveOutput(e.getKey(), tokens, librariesDir);
+                String value = e.getValue() == null ? null : Util.replaceTokens(tokens, e.getValue());
+                if (key == null || value == null) {
+                    plan.add("processor output", e.getKey(), null, Source.MISSING, 0, null);
+                    continue;
+                }
+                File artifact = new File(key);
+                if (artifact.exists() && value.equals(DownloadUtils.getSha1(artifact)))
+                    plan.add("processor output", key, artifact, Source.EXISTING, artifact.length(), null);
+                else
+                    plan.add("processor output", key, artifact, Source.PROCESSOR, 0, null);
+            }
+        }
+    }
+
+    private void addTokens(Map<String, String> tokens, File librariesDir, File minecraft, File root, File installer) {
+        tokens.put("SIDE", isClient ? "client" : "server");
+        tokens.put("MINECRAFT_JAR", minecraft.getAbsolutePath());
+        tokens.put("MINECRAFT_VERSION", profile.getMinecraft());
+        tokens.put("ROOT", root.getAbsolutePath());
+        tokens.put("INSTALLER", installer.getAbsolutePath());
+        tokens.put("LIBRARY_DIR", librariesDir.getAbsolutePath());
+    }
+
+    private static String resolveOutput(String key, Map<String, String> tokens, File librariesDir) {
+        if (key.charAt(0) == '[' && key.charAt(key.length() - 1) == ']')
+            return Artifact.from(key.substring(1, key.length() - 1)).getLocalPath(librariesDir).getAbsolutePath();
+        return Util.replaceTokens(tokens, key);
+    }
+
     public boolean process(File librariesDir, File minecraft, File root, File installer) {
+        return process(librariesDir, minecraft, root, installer, Collections.emptyMap());
+    }
+
+    /**
+     * Runs the processors, each waiting only for the downloads of files it reads. A directory waits for everything in it.
+     *
+     * @param pending Files still being downloaded, to whether they were downloaded successfully
+     */
+    public boolean process(File librariesDir, File minecraft, File root, File installer, Map<Path, CompletableFuture<Boolean>> pending) {
         try {
             if (!data.isEmpty()) {
                 StringBuilder err = new StringBuilder();
@@ -80,6 +171,7 @@ public class PostProcessors {
                 monitor.start("Created Temporary Directory: " + temp);
                 double steps = data.size();
                 int progress = 1;
+                Map<String, File> extract = new HashMap<>();
                 for (String key : data.keySet()) {
                     monitor.progress(progress++ / steps);
                     String value = data.get(key);
@@ -91,111 +183,26 @@ public class PostProcessors {
                     } else {
                         File target = Paths.get(temp.toString(), value).toFile();
                         monitor.message("  Extracting: " + value);
-                        if (!DownloadUtils.extractFile(value, target))
-                            err.append("\n  ").append(value);
+                        extract.put(value, target);
                         data.put(key, target.getAbsolutePath());
                     }
                 }
+                for (String value : InstallerArchive.get().extractAll(extract, SimpleInstaller.downloadThreads))
+                    err.append("\n  ").append(value);
                 if (err.length() > 0) {
-                    error("Failed to extract files from archive: " + err.toString());
+                    error(monitor, "Failed to extract files from archive: " + err.toString());
                     return false;
                 }
             }
-            data.put("SIDE", isClient ? "client" : "server");
-            data.put("MINECRAFT_JAR", minecraft.getAbsolutePath());
-            data.put("MINECRAFT_VERSION", profile.getMinecraft());
-            data.put("ROOT", root.getAbsolutePath());
-            data.put("INSTALLER", installer.getAbsolutePath());
-            data.put("LIBRARY_DIR", librariesDir.getAbsolutePath());
-
-            int progress = 1;
+            addTokens(data, librariesDir, minecraft, root, installer);
+
             if (processors.size() == 1) {
                 monitor.stage("Building Processor");
             } else {
                 monitor.start("Building Processors");
             }
+            ProcessorScheduler scheduler = new ProcessorScheduler(monitor, SimpleInstaller.processorThreads);
             for (Processor proc : processors) {
-                monitor.progress((double) progress++ / processors.size());
-                log("===============================================================================");
-
-                Map<String, String> outputs = new HashMap<>();
-                if (!proc.getOutputs().isEmpty()) {
-                    boolean miss = false;
-                    log("  Cache: ");
-                    for (Entry<String, String> e : proc.getOutputs().entrySet()) {
-                        String key = e.getKey();
-                        if (key.charAt(0) == '[' && key.charAt(key.length() - 1) == ']')
-                            key = Artifact.from(key.substring(1, key.length() - 1)).getLocalPath(librariesDir).getAbsolutePath();
-                        else
-                            key = Util.replaceTokens(data, key);
-
-                        String value = e.getValue();
-                        if (value != null)
-                            value = Util.replaceTokens(data, value);
-
-                        if (key == null || value == null) {
-                            error("  Invalid configuration, bad output config: [" + e.getKey() + ": " + e.getValue() + "]");
-                            return false;
-                        }
-
-                        outputs.put(key, value);
-                        File artifact = new File(key);
-                        if (!artifact.exists()) {
-                            log("    " + key + " Missing");
-                            miss = true;
-                        } else {
-                            String sha = DownloadUtils.getSha1(artifact);
-                            if (sha.equals(value)) {
-                                log("    " + key + " Validated: " + value);
-                            } else {
-                                log("    " + key);
-                                log("      Expected: " + value);
-                                log("      Actual:   " + sha);
-                                miss = true;
-                                artifact.delete();
-                            }
-                        }
-                    }
-                    if (!miss) {
-                        log("  Cache Hit!");
-                        continue;
-                    }
-                }
-
-                File jar = proc.getJar().getLocalPath(librariesDir);
-                if (!jar.exists() || !jar.isFile()) {
-                    error("  Missing Jar for processor: " + jar.getAbsolutePath());
-                    return false;
-                }
-
-                // Locate main class in jar file
-                JarFile jarFile = new JarFile(jar);
-                String mainClass = jarFile.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
-                jarFile.close();
-
-                if (mainClass == null || mainClass.isEmpty()) {
-                    error("  Jar does not have main class: " + jar.getAbsolutePath());
-                    return false;
-                }
-                monitor.message("  MainClass: " + mainClass, ProgressCallback.MessagePriority.LOW);
-
-                List<URL> classpath = new ArrayList<>();
-                StringBuilder err = new StringBuilder();
-                monitor.message("  Classpath:", ProgressCallback.MessagePriority.LOW);
-                monitor.message("    " + jar.getAbsolutePath(), ProgressCallback.MessagePriority.LOW);
-                classpath.add(jar.toURI().toURL());
-                for (Artifact dep : proc.getClasspath()) {
-                    File lib = dep.getLocalPath(librariesDir);
-                    if (!lib.exists() || !lib.isFile())
-                        err.append("\n  ").append(dep.getDescriptor());
-                    classpath.add(lib.toURI().toURL());
-                    monitor.message("    " + lib.getAbsolutePath(), ProgressCallback.MessagePriority.LOW);
-                }
-                if (err.length() > 0) {
-                    error("  Missing Processor Dependencies: " + err.toString());
-                    return false;
-                }
-
                 List<String> args = new ArrayList<>();
                 for (String arg : proc.getArgs()) {
                     char start = arg.charAt(0);
@@ -206,80 +213,223 @@ public class PostProcessors {
                     else
                         args.add(Util.replaceTokens(data, arg));
                 }
-                if (err.length() > 0) {
-                    error("  Missing Processor data values: " + err.toString());
-                    return false;
+
+                Set<Path> reads = new HashSet<>();
+                for (String arg : args)
+                    addPath(reads, arg);
+                Set<Path> outputs = new HashSet<>();
+                for (String key : proc.getOutputs().keySet())
+                    addPath(outputs, resolveOutput(key, data, librariesDir));
+                // Without declared outputs there is no telling what a processor writes, so assume it is any of its arguments
+                Set<Path> writes = outputs.isEmpty() ? new HashSet<>(reads) : outputs;
+                addPath(reads, proc.getJar().getLocalPath(librariesDir).getAbsolutePath());
+                for (Artifact dep : proc.getClasspath())
+                    addPath(reads, dep.getLocalPath(librariesDir).getAbsolutePath());
+                List<CompletableFuture<Boolean>> waits = new ArrayList<>();
+                for (Entry<Path, CompletableFuture<Boolean>> e : pending.entrySet()) {
+                    // A file the processor creates itself is never waited for, only guessed writes may still be downloads
+                    if (!outputs.contains(e.getKey()) && reads.stream().anyMatch(e.getKey()::startsWith))
+                        waits.add(e.getValue());
                 }
-                monitor.message("  Args: " + args.stream().map(a -> a.indexOf(' ') != -1 || a.indexOf(',') != -1 ? '"' + a + '"' : a).collect(Collectors.joining(", ")), ProgressCallback.MessagePriority.LOW);
+                scheduler.add(proc.getJar().getDescriptor(), reads, writes, waits, log -> run(proc, args, librariesDir, log));
+            }
 
-                ClassLoader cl = new URLClassLoader(classpath.toArray(new URL[classpath.size()]), getParentClassloader());
-                // Set the thread context classloader to be our newly constructed one so that service loaders work
-                Thread currentThread = Thread.currentThread();
-                ClassLoader threadClassloader = currentThread.getContextClassLoader();
-                currentThread.setContextClassLoader(cl);
-                try {
-                    Class<?> cls = Class.forName(mainClass, true, cl);
-                    Method main = cls.getDeclaredMethod("main", String[].class);
-                    main.invoke(null, (Object)args.toArray(new String[args.size()]));
-                } catch (InvocationTargetException ite) {
-                    Throwable e = ite.getCause();
-                    e.printStackTrace();
-                    if (e.getMessage() == null)
-                        error("Failed to run processor: " + e.getClass().getName() + "\nSee log for more details.");
-                    else
-                        error("Failed to run processor: " + e.getClass().getName() + ":" + e.getMessage() + "\nSee log for more details.");
-                    return false;
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    if (e.getMessage() == null)
-                        error("Failed to run processor: " + e.getClass().getName() + "\nSee log for more details.");
-                    else
-                        error("Failed to run processor: " + e.getClass().getName() + ":" + e.getMessage() + "\nSee log for more details.");
+            return scheduler.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            HashIndex.save();
+        }
+    }
+
+    private boolean run(Processor proc, List<String> args, File librariesDir, ProgressCallback log) throws IOException {
+        log(log, "===============================================================================");
+
+        Map<String, String> outputs = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+        if (!proc.getOutputs().isEmpty()) {
+            boolean miss = false;
+            log(log, "  Cache: ");
+            for (Entry<String, String> e : proc.getOutputs().entrySet()) {
+                String key = resolveOutput(e.getKey(), data, librariesDir);
+
+                String value = e.getValue();
+                if (value != null)
+                    value = Util.replaceTokens(data, value);
+
+                if (key == null || value == null) {
+                    error(log, "  Invalid configuration, bad output config: [" + e.getKey() + ": " + e.getValue() + "]");
                     return false;
-                } finally {
-                    // Set back to the previous classloader
-                    currentThread.setContextClassLoader(threadClassloader);
                 }
 
-                if (!outputs.isEmpty()) {
-                    for (Entry<String, String> e : outputs.entrySet()) {
-                        File artifact = new File(e.getKey());
-                        if (!artifact.exists()) {
-                            err.append("\n    ").append(e.getKey()).append(" missing");
-                        } else {
-                            String sha = DownloadUtils.getSha1(artifact);
-                            if (sha.equals(e.getValue())) {
-                                log("  Output: " + e.getKey() + " Checksum Validated: " + sha);
-                            } else {
-                                err.append("\n    ").append(e.getKey())
-                                   .append("\n      Expected: ").append(e.getValue())
-                                   .append("\n      Actual:   ").append(sha);
-                                if (!SimpleInstaller.debug && !artifact.delete())
-                                    err.append("\n      Could not delete file");
-                            }
-                        }
-                    }
-                    if (err.length() > 0) {
-                        error("  Processor failed, invalid outputs:" + err.toString());
-                        return false;
+                outputs.put(key, value);
+                names.put(key, e.getKey());
+                File artifact = new File(key);
+                if (!artifact.exists()) {
+                    log(log, "    " + key + " Missing");
+                    miss = true;
+                } else {
+                    String sha = DownloadUtils.getSha1(artifact);
+                    if (sha.equals(value)) {
+                        log(log, "    " + key + " Validated: " + value);
+                    } else {
+                        log(log, "    " + key);
+                        log(log, "      Expected: " + value);
+                        log(log, "      Actual:   " + sha);
+                        miss = true;
+                        artifact.delete();
                     }
                 }
             }
+            if (!miss) {
+                log(log, "  Cache Hit!");
+                return true;
+            }
+        }
 
-            return true;
-        } catch (IOException e) {
+        File jar = proc.getJar().getLocalPath(librariesDir);
+        if (!jar.exists() || !jar.isFile()) {
+            error(log, "  Missing Jar for processor: " + jar.getAbsolutePath());
+            return false;
+        }
+
+        // Locate main class in jar file
+        JarFile jarFile = new JarFile(jar);
+        String mainClass = jarFile.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+        jarFile.close();
+
+        if (mainClass == null || mainClass.isEmpty()) {
+            error(log, "  Jar does not have main class: " + jar.getAbsolutePath());
+            return false;
+        }
+        log.message("  MainClass: " + mainClass, ProgressCallback.MessagePriority.LOW);
+
+        List<URL> classpath = new ArrayList<>();
+        StringBuilder err = new StringBuilder();
+        log.message("  Classpath:", ProgressCallback.MessagePriority.LOW);
+        log.message("    " + jar.getAbsolutePath(), ProgressCallback.MessagePriority.LOW);
+        classpath.add(jar.toURI().toURL());
+        for (Artifact dep : proc.getClasspath()) {
+            File lib = dep.getLocalPath(librariesDir);
+            if (!lib.exists() || !lib.isFile())
+                err.append("\n  ").append(dep.getDescriptor());
+            classpath.add(lib.toURI().toURL());
+            log.message("    " + lib.getAbsolutePath(), ProgressCallback.MessagePriority.LOW);
+        }
+        if (err.length() > 0) {
+            error(log, "  Missing Processor Dependencies: " + err.toString());
+            return false;
+        }
+
+        String cacheKey = null;
+        if (!outputs.isEmpty()) {
+            List<File> libs = Arrays.stream(proc.getClasspath()).map(dep -> dep.getLocalPath(librariesDir)).collect(Collectors.toList());
+            cacheKey = ProcessorCache.getKey(jar, libs, Arrays.asList(proc.getArgs()), args);
+            if (ProcessorCache.restore(cacheKey, outputs, names)) {
+                log(log, "  Restored outputs of an earlier identical run: " + cacheKey);
+                return true;
+            }
+        }
+
+        log.message("  Args: " + args.stream().map(a -> a.indexOf(' ') != -1 || a.indexOf(',') != -1 ? '"' + a + '"' : a).collect(Collectors.joining(", ")), ProgressCallback.MessagePriority.LOW);
+
+        if (SimpleInstaller.processorDaemon) {
+            try {
+                String failure = ProcessorDaemon.run(new File(ArtifactCache.getRoot(), "daemon"), classpath, mainClass, args, log);
+                if (failure != null) {
+                    error(log, "Failed to run processor: " + failure + "\nSee log for more details.");
+                    return false;
+                }
+                return validate(outputs, names, cacheKey, log);
+            } catch (IOException e) {
+                e.printStackTrace();
+                log(log, "  Processor daemon unavailable, running here: " + e.getMessage());
+            }
+        }
+
+        // Every processor gets its own classloader, so processors running at the same time can't see each other's classes
+        URLClassLoader cl = new URLClassLoader(classpath.toArray(new URL[classpath.size()]), getParentClassloader());
+        // Set the thread context classloader to be our newly constructed one so that service loaders work
+        Thread currentThread = Thread.currentThread();
+        ClassLoader threadClassloader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(cl);
+        try {
+            Class<?> cls = Class.forName(mainClass, true, cl);
+            Method main = cls.getDeclaredMethod("main", String[].class);
+            main.invoke(null, (Object)args.toArray(new String[args.size()]));
+        } catch (InvocationTargetException ite) {
+            Throwable e = ite.getCause();
+            e.printStackTrace();
+            if (e.getMessage() == null)
+                error(log, "Failed to run processor: " + e.getClass().getName() + "\nSee log for more details.");
+            else
+                error(log, "Failed to run processor: " + e.getClass().getName() + ":" + e.getMessage() + "\nSee log for more details.");
+            return false;
+        } catch (Throwable e) {
             e.printStackTrace();
+            if (e.getMessage() == null)
+                error(log, "Failed to run processor: " + e.getClass().getName() + "\nSee log for more details.");
+            else
+                error(log, "Failed to run processor: " + e.getClass().getName() + ":" + e.getMessage() + "\nSee log for more details.");
             return false;
+        } finally {
+            // Set back to the previous classloader
+            currentThread.setContextClassLoader(threadClassloader);
+            cl.close();
+        }
+
+        return validate(outputs, names, cacheKey, log);
+    }
+
+    private static boolean validate(Map<String, String> outputs, Map<String, String> names, String cacheKey, ProgressCallback log) {
+        if (!outputs.isEmpty()) {
+            StringBuilder err = new StringBuilder();
+            for (Entry<String, String> e : outputs.entrySet()) {
+                File artifact = new File(e.getKey());
+                if (!artifact.exists()) {
+                    err.append("\n    ").append(e.getKey()).append(" missing");
+                } else {
+                    String sha = DownloadUtils.getSha1(artifact);
+                    if (sha.equals(e.getValue())) {
+                        log(log, "  Output: " + e.getKey() + " Checksum Validated: " + sha);
+                    } else {
+                        err.append("\n    ").append(e.getKey())
+                           .append("\n      Expected: ").append(e.getValue())
+                           .append("\n      Actual:   ").append(sha);
+                        if (!SimpleInstaller.debug && !artifact.delete())
+                            err.append("\n      Could not delete file");
+                    }
+                }
+            }
+            if (err.length() > 0) {
+                error(log, "  Processor failed, invalid outputs:" + err.toString());
+                return false;
+            }
+            ProcessorCache.store(cacheKey, outputs, names);
+        }
+        return true;
+    }
+
+    private static void addPath(Set<Path> paths, String value) {
+        if (value == null)
+            return;
+        try {
+            Path path = Paths.get(value);
+            if (path.isAbsolute())
+                paths.add(path.normalize());
+        } catch (InvalidPathException e) {
+            // Not a path
         }
     }
 
-    private void error(String message) {
+    private static void error(ProgressCallback monitor, String message) {
         if (!SimpleInstaller.headless)
             JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
         for (String line : message.split("\n"))
             monitor.message(line);
     }
-    private void log(String message) {
+    private static void log(ProgressCallback monitor, String message) {
         for (String line : message.split("\n"))
             monitor.message(line);
     }
@@ -295,7 +445,7 @@ public class PostProcessors {
                     Method getPlatform = ClassLoader.class.getDeclaredMethod("getPlatformClassLoader");
                     parentClassLoader = (ClassLoader)getPlatform.invoke(null);
                 } catch (NoSuchMethodException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                    log("No platform classloader: " + System.getProperty("java.version"));
+                    log(monitor, "No platform classloader: " + System.getProperty("java.version"));
                 }
             }
         }
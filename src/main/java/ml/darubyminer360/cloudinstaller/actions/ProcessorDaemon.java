@@ -0,0 +1,467 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.download.Transfer;
+
+/**
+ * Long lived JVM that runs processors for every install on this machine, so they don't start cold each time.
+ *
+ * The daemon listens on a loopback port that, with a random token, is published in {@code daemon.json} in its
+ * state directory, readable only by the current user. A daemon started from a different installer is not used.
+ * Classloaders are kept per classpath, so the second run of a tool is already loaded and compiled. Runs sharing
+ * a classloader take turns, as processors keep their state in statics. The first daemon records the classes it
+ * loaded into an AppCDS archive when it exits, later daemons start from that archive. It shuts itself down after
+ * a while without work.
+ *
+ * Requests are a single line of JSON, answers are lines of processor output followed by the result.
+ */
+public class ProcessorDaemon {
+    private static final Gson GSON = new Gson();
+    private static final long IDLE_TIME = TimeUnit.MINUTES.toMillis(15);
+    private static final long START_TIME = TimeUnit.SECONDS.toMillis(20);
+    private static final int MAX_CLASSLOADERS = 16;
+    private static final String INFO = "daemon.json";
+    // Identifies the installer build, daemons started from another one are not used
+    private static final String VERSION = getVersion();
+    // An archive only works for the class path that created it, so every build gets its own
+    private static final String ARCHIVE = "processors-" + VERSION + ".jsa";
+
+    private static final InheritableThreadLocal<LineSink> SINK = new InheritableThreadLocal<>();
+
+    private final File root;
+    private final String token;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong lastUsed = new AtomicLong(System.currentTimeMillis());
+    private final ExecutorService cleanup = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Classloader Cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Loader> classloaders = new LinkedHashMap<String, Loader>(16, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Loader> eldest) {
+            if (size() <= MAX_CLASSLOADERS)
+                return false;
+            // Closing waits for the run using it, so don't hold up the request that evicted it
+            Loader loader = eldest.getValue();
+            cleanup.execute(loader::close);
+            return true;
+        }
+    };
+
+    private ProcessorDaemon(File root, String token) {
+        this.root = root;
+        this.token = token;
+    }
+
+    /**
+     * Runs a processor in the daemon for the specified state directory, starting the daemon if needed.
+     *
+     * @return null if the processor finished normally, otherwise a description of what it threw
+     * @throws IOException if the daemon could not be reached, the processor should be run some other way
+     */
+    public static String run(File root, List<URL> classpath, String mainClass, List<String> args, ProgressCallback log) throws IOException {
+        Request request = new Request();
+        request.classpath = new ArrayList<>();
+        for (URL url : classpath)
+            request.classpath.add(url.toString());
+        request.mainClass = mainClass;
+        request.args = args;
+
+        Connection connection = connect(root);
+        if (connection == null)
+            connection = start(root);
+        // The token of the daemon that was connected to, daemon.json may already be gone or belong to another one
+        request.token = connection.info.token;
+        Socket socket = connection.socket;
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(GSON.toJson(request));
+            out.write('\n');
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                Response response = GSON.fromJson(line, Response.class);
+                if (response.done)
+                    return response.error;
+                log.message(response.out);
+            }
+            throw new IOException("Processor daemon closed the connection");
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static Connection connect(File root) {
+        Info info = read(new File(root, INFO));
+        if (info == null || info.token == null || !VERSION.equals(info.version))
+            return null;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), info.port), 2000);
+            return new Connection(socket, info);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Nothing to do
+            }
+            return null;
+        }
+    }
+
+    private static synchronized Connection start(File root) throws IOException {
+        root.mkdirs();
+        try (FileChannel channel = FileChannel.open(new File(root, "daemon.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock(); // Released when the channel is closed
+            // Someone else may have started one while we waited for the lock
+            Connection connection = connect(root);
+            if (connection != null)
+                return connection;
+            // A daemon from another installer is left to shut down once it is idle
+            new File(root, INFO).delete();
+
+            List<String> command = new ArrayList<>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+            if (Runtime.version().feature() >= 13) {
+                File[] stale = root.listFiles((dir, name) -> name.startsWith("processors") && name.endsWith(".jsa") && !name.equals(ARCHIVE));
+                if (stale != null) {
+                    for (File file : stale)
+                        file.delete();
+                }
+                File archive = new File(root, ARCHIVE);
+                if (archive.isFile())
+                    command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+                else
+                    command.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ProcessorDaemon.class.getName());
+            command.add(root.getAbsolutePath());
+
+            File output = new File(root, "daemon.log");
+            new ProcessBuilder(command).directory(root).redirectErrorStream(true).redirectOutput(output).start();
+
+            long deadline = System.currentTimeMillis() + START_TIME;
+            while (System.currentTimeMillis() < deadline) {
+                connection = connect(root);
+                if (connection != null)
+                    return connection;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while starting the processor daemon");
+                }
+            }
+            throw new IOException("Processor daemon did not start, see " + output.getAbsolutePath());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File root = new File(args[0]);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        ProcessorDaemon daemon = new ProcessorDaemon(root, HashFunction.SHA1.hash(secret));
+
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(new RoutingStream(original), true, "UTF-8"));
+        System.setErr(new PrintStream(new RoutingStream(System.err), true, "UTF-8"));
+
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Info info = new Info();
+        info.port = server.getLocalPort();
+        info.token = daemon.token;
+        info.pid = ProcessHandle.current().pid();
+        info.version = VERSION;
+        daemon.write(info);
+        original.println("Processor daemon listening on port " + info.port);
+
+        ScheduledExecutorService idle = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Idle Shutdown");
+            thread.setDaemon(true);
+            return thread;
+        });
+        idle.scheduleWithFixedDelay(() -> {
+            if (daemon.active.get() == 0 && System.currentTimeMillis() - daemon.lastUsed.get() > IDLE_TIME) {
+                original.println("Idle, shutting down");
+                Info current = read(new File(root, INFO));
+                if (current != null && daemon.token.equals(current.token))
+                    new File(root, INFO).delete();
+                // Exiting normally is what writes the class data archive
+                System.exit(0);
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+
+        AtomicInteger count = new AtomicInteger(1);
+        while (true) {
+            Socket socket = server.accept();
+            Thread thread = new Thread(() -> daemon.handle(socket), "Processor Request #" + count.getAndIncrement());
+            thread.start();
+        }
+    }
+
+    private void handle(Socket socket) {
+        active.incrementAndGet();
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Request request = GSON.fromJson(in.readLine(), Request.class);
+            if (request == null || request.token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), request.token.getBytes(StandardCharsets.UTF_8)))
+                return;
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            LineSink sink = new LineSink(out);
+            SINK.set(sink);
+            Response result = new Response();
+            result.done = true;
+            try {
+                result.error = invoke(request);
+            } finally {
+                SINK.remove();
+            }
+            synchronized (sink) {
+                sink.flush();
+                out.write(GSON.toJson(result));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            lastUsed.set(System.currentTimeMillis());
+            active.decrementAndGet();
+        }
+    }
+
+    private String invoke(Request request) {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader threadClassloader = currentThread.getContextClassLoader();
+        try {
+            while (true) {
+                Loader loader = getClassloader(request.classpath);
+                synchronized (loader) {
+                    if (loader.closed) // Evicted while the previous run had it
+                        continue;
+                    // Set the thread context classloader so that service loaders work
+                    currentThread.setContextClassLoader(loader.classloader);
+                    Class<?> cls = Class.forName(request.mainClass, true, loader.classloader);
+                    Method main = cls.getDeclaredMethod("main", String[].class);
+                    main.invoke(null, (Object)request.args.toArray(new String[request.args.size()]));
+                    return null;
+                }
+            }
+        } catch (InvocationTargetException ite) {
+            Throwable e = ite.getCause();
+            e.printStackTrace();
+            return e.getMessage() == null ? e.getClass().getName() : e.getClass().getName() + ":" + e.getMessage();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return e.getMessage() == null ? e.getClass().getName() : e.getClass().getName() + ":" + e.getMessage();
+        } finally {
+            currentThread.setContextClassLoader(threadClassloader);
+        }
+    }
+
+    private Loader getClassloader(List<String> classpath) throws IOException {
+        // Rebuilt when any jar changes, so a reinstalled library isn't served from the old classes
+        StringBuilder key = new StringBuilder();
+        URL[] urls = new URL[classpath.size()];
+        for (int x = 0; x < urls.length; x++) {
+            urls[x] = new URL(classpath.get(x));
+            File file = new File(urls[x].getPath());
+            key.append(classpath.get(x)).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+        }
+        synchronized (classloaders) {
+            return classloaders.computeIfAbsent(key.toString(), k -> new Loader(new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())));
+        }
+    }
+
+    private static String getVersion() {
+        StringBuilder key = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            File file = new File(entry);
+            key.append(file.getAbsolutePath()).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+        }
+        return HashFunction.SHA1.hash(key.toString());
+    }
+
+    private void write(Info info) throws IOException {
+        root.mkdirs();
+        File target = new File(root, INFO);
+        File temp = Transfer.getTemp(target, ".tmp");
+        Files.write(temp.toPath(), GSON.toJson(info).getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+        }
+        Transfer.moveIntoPlace(temp, target);
+    }
+
+    private static Info read(File file) {
+        if (!file.isFile())
+            return null;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), Info.class);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends the output of whatever request the current thread works for back to its client, the rest goes to the daemon's log.
+     */
+    private static class RoutingStream extends OutputStream {
+        private final OutputStream fallback;
+
+        private RoutingStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            LineSink sink = SINK.get();
+            if (sink == null)
+                fallback.write(b);
+            else
+                sink.write(b);
+        }
+    }
+
+    private static class LineSink {
+        private final Writer out;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private LineSink(Writer out) {
+            this.out = out;
+        }
+
+        private synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                flush();
+                out.flush();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        private synchronized void flush() throws IOException {
+            if (line.size() == 0)
+                return;
+            Response response = new Response();
+            response.out = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            out.write(GSON.toJson(response));
+            out.write('\n');
+        }
+    }
+
+    private static class Loader {
+        private final URLClassLoader classloader;
+        private boolean closed = false;
+
+        private Loader(URLClassLoader classloader) {
+            this.classloader = classloader;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            try {
+                classloader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final Info info;
+
+        private Connection(Socket socket, Info info) {
+            this.socket = socket;
+            this.info = info;
+        }
+    }
+
+    private static class Info {
+        private int port;
+        private String token;
+        private long pid;
+        private String version;
+    }
+
+    private static class Request {
+        private String token;
+        private List<String> classpath;
+        private String mainClass;
+        private List<String> args;
+    }
+
+    private static class Response {
+        private String out;
+        private boolean done;
+        private String error;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs processors on a bounded pool of worker threads, as soon as the processors they depend on have finished.
+ *
+ * Processors only talk to each other through files, so a processor depends on every earlier one that writes a
+ * path it reads or writes, or that reads a path it writes. Paths overlap when one contains the other. A processor
+ * that doesn't declare its outputs is assumed to write everything in its arguments. Once a processor fails
+ * nothing new is started. Processors can also wait on files that are still being downloaded, and are skipped if
+ * one of those fails. Log output is buffered per processor and written in one block once it finishes.
+ */
+class ProcessorScheduler {
+    private final ProgressCallback monitor;
+    private final int threads;
+    private final List<Node> nodes = new ArrayList<>();
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    ProcessorScheduler(ProgressCallback monitor, int threads) {
+        this.monitor = monitor;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Adds a processor, after every processor it depends on. Must be called in the order the profile lists them.
+     *
+     * @param waits Downloads that must succeed before the processor can run
+     */
+    void add(String name, Set<Path> reads, Set<Path> writes, List<CompletableFuture<Boolean>> waits, Task task) {
+        Node node = new Node(name, reads, writes, waits, task);
+        for (Node other : nodes) {
+            if (overlaps(other.writes, node.reads) || overlaps(other.writes, node.writes) || overlaps(node.writes, other.reads))
+                node.depends.add(other);
+        }
+        nodes.add(node);
+    }
+
+    /**
+     * Runs every processor and waits for them to finish.
+     * @return false if any of them failed, or the thread was interrupted
+     */
+    boolean run() {
+        AtomicInteger count = new AtomicInteger(1);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, nodes.size())), r -> {
+            Thread thread = new Thread(r, "Processor #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (Node node : nodes) {
+                List<CompletableFuture<Boolean>> depends = new ArrayList<>(node.waits);
+                for (Node other : node.depends)
+                    depends.add(other.future);
+                node.future = CompletableFuture.allOf(depends.toArray(new CompletableFuture<?>[depends.size()])).thenApplyAsync(v -> execute(node), executor);
+            }
+            for (Node node : nodes) {
+                try {
+                    node.future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failed.set(true);
+                }
+            }
+            return !failed.get();
+        } catch (InterruptedException e) {
+            failed.set(true);
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private boolean execute(Node node) {
+        if (failed.get())
+            return false;
+
+        BufferedCallback log = new BufferedCallback();
+        boolean result;
+        try {
+            if (node.waits.stream().anyMatch(w -> !w.join())) {
+                log.message("Skipping processor " + node.name + ", a file it needs failed to download");
+                result = false;
+            } else
+                result = node.task.run(log);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            log.message("  Unexpected error: " + e.toString());
+            result = false;
+        }
+        if (!result)
+            failed.set(true);
+
+        synchronized (monitor) {
+            log.flush(monitor);
+            monitor.progress(finished.incrementAndGet() / (double)nodes.size());
+        }
+        return result;
+    }
+
+    private static boolean overlaps(Set<Path> first, Set<Path> second) {
+        for (Path a : first) {
+            for (Path b : second) {
+                if (a.startsWith(b) || b.startsWith(a))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    interface Task {
+        boolean run(ProgressCallback log) throws IOException;
+    }
+
+    private static class Node {
+        private final String name;
+        private final Set<Path> reads;
+        private final Set<Path> writes;
+        private final List<CompletableFuture<Boolean>> waits;
+        private final Task task;
+        private final List<Node> depends = new ArrayList<>();
+        private CompletableFuture<Boolean> future;
+
+        private Node(String name, Set<Path> reads, Set<Path> writes, List<CompletableFuture<Boolean>> waits, Task task) {
+            this.name = name;
+            this.reads = reads;
+            this.writes = writes;
+            this.waits = waits;
+            this.task = task;
+        }
+    }
+}
@@ -17,10 +17,13 @@
 package ml.darubyminer360.cloudinstaller.actions;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 import ml.darubyminer360.cloudinstaller.SimpleInstaller;
@@ -28,6 +31,9 @@ import ml.darubyminer360.cloudinstaller.json.InstallV1;
 import ml.darubyminer360.cloudinstaller.json.Util;
 import ml.darubyminer360.cloudinstaller.json.Version;
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.InstallerArchive;
+import ml.darubyminer360.cloudinstaller.actions.InstallPlan.Source;
+import ml.darubyminer360.cloudinstaller.download.HashIndex;
 import ml.darubyminer360.cloudinstaller.json.Artifact;
 
 public class ServerInstall extends Action {
@@ -48,11 +54,48 @@ public class ServerInstall extends Action {
         if (!target.exists())
             target.mkdirs();
         librariesDir.mkdir();
-        if (profile.getMirror() != null)
-            monitor.stage(getSponsorMessage());
+        HashIndex.open(target);
         checkCancel();
 
-        // Extract main executable jar
+        Map<String, String> tokens = new HashMap<>();
+        tokens.put("ROOT", target.getAbsolutePath());
+        tokens.put("MINECRAFT_VERSION", profile.getMinecraft());
+        tokens.put("LIBRARY_DIR", librariesDir.getAbsolutePath());
+        File serverTarget = new File(Util.replaceTokens(tokens, profile.getServerJarPath()));
+        AtomicReference<Version.Download> server = new AtomicReference<>();
+
+        List<File> libDirs = new ArrayList<>();
+        File mcLibDir = new File(SimpleInstaller.getMCDir(), "libraries");
+        if (mcLibDir.exists()) {
+            libDirs.add(mcLibDir);
+        }
+
+        StageGraph graph = new StageGraph(monitor);
+        graph.add("main jar", () -> extractMainJar(target));
+        addLibraryStages(graph, librariesDir, optionals, libDirs);
+        graph.add("manifest", () -> serverTarget.exists() || resolveServer(target, server));
+        CompletableFuture<Boolean> vanilla = graph.add("minecraft jar", () -> serverTarget.exists() || downloadServer(server.get(), serverTarget), "manifest", "mirrors");
+
+        // Processors start as soon as the files they use are in place, the rest keep downloading meanwhile
+        graph.add("processors", () -> {
+            Map<Path, CompletableFuture<Boolean>> pending = new HashMap<>(getPendingLibraries());
+            pending.put(serverTarget.toPath().toAbsolutePath().normalize(), vanilla);
+            return processors.process(librariesDir, serverTarget, target, installer, pending);
+        }, "queue libraries", "main jar");
+        graph.add("install", () -> true, "minecraft jar", "libraries", "processors");
+
+        // TODO: Optionals
+        //if (!OptionalLibrary.saveModListJson(librariesDir, new File(target, "mods/mod_list.json"), VersionInfo.getOptionals(), optionals))
+        //    return false;
+
+        if (!graph.run())
+            return false;
+
+        saveLockfile(new File(target, "installer.lock.json"));
+        return true;
+    }
+
+    private boolean extractMainJar(File target) {
         Artifact contained = profile.getPath();
         if (contained != null) {
             monitor.stage("Extracting main jar:");
@@ -62,64 +105,75 @@ public class ServerInstall extends Action {
             } else
                 monitor.stage("  Extracted successfully");
         }
-        checkCancel();
+        return true;
+    }
 
-        //Download MC Server jar
+    private boolean resolveServer(File target, AtomicReference<Version.Download> result) {
         monitor.stage("Considering minecraft server jar");
-        Map<String, String> tokens = new HashMap<>();
-        tokens.put("ROOT", target.getAbsolutePath());
-        tokens.put("MINECRAFT_VERSION", profile.getMinecraft());
-        tokens.put("LIBRARY_DIR", librariesDir.getAbsolutePath());
-
-        String path = Util.replaceTokens(tokens, profile.getServerJarPath());
-        File serverTarget = new File(path);
-        if (!serverTarget.exists()) {
-            File parent = serverTarget.getParentFile();
-            if (!parent.exists()) {
-                parent.mkdirs();
-            }
-
+        Version.Download server = getLockedDownload("minecraft:server");
+        if (server == null) {
             File versionJson = new File(target, profile.getMinecraft() + ".json");
             Version vanilla = Util.getVanillaVersion(profile.getMinecraft(), versionJson);
             if (vanilla == null) {
                 error("Failed to download version manifest, can not find server jar URL.");
                 return false;
             }
-            Version.Download server = vanilla.getDownload("server");
+            server = vanilla.getDownload("server");
             if (server == null) {
                 error("Failed to download minecraft server, info missing from manifest: " + versionJson);
                 return false;
             }
 
             versionJson.delete();
+        }
+        result.set(server);
+        return true;
+    }
 
-            if (!DownloadUtils.download(monitor, profile.getMirror(), server, serverTarget)) {
-                serverTarget.delete();
-                error("Downloading minecraft server failed, invalid checksum.\n" +
-                      "Try again, or manually place server jar to skip download.");
-                return false;
-            }
+    private boolean downloadServer(Version.Download server, File serverTarget) {
+        File parent = serverTarget.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
         }
-        checkCancel();
 
-        // Download Libraries
+        if (!DownloadUtils.download(monitor, profile.getMirror(), server, serverTarget)) {
+            serverTarget.delete();
+            error("Downloading minecraft server failed, invalid checksum.\n" +
+                  "Try again, or manually place server jar to skip download.");
+            return false;
+        }
+        record("minecraft:server", server);
+        return true;
+    }
+
+    @Override
+    public InstallPlan plan(File target, Predicate<String> optionals, File installer) {
+        InstallPlan plan = new InstallPlan("server", target);
+        HashIndex.open(target);
+        File librariesDir = new File(target, "libraries");
+
+        Artifact contained = profile.getPath();
+        if (contained != null) {
+            InstallerArchive archive = InstallerArchive.get();
+            String path = "/maven/" + contained.getPath();
+            plan.add("installer", contained.getDescriptor(), new File(target, contained.getFilename()), archive.contains(path) ? Source.EMBEDDED : Source.MISSING, Math.max(0, archive.getSize(path)), null);
+        }
+
+        Map<String, String> tokens = new HashMap<>();
+        tokens.put("ROOT", target.getAbsolutePath());
+        tokens.put("MINECRAFT_VERSION", profile.getMinecraft());
+        tokens.put("LIBRARY_DIR", librariesDir.getAbsolutePath());
+        File serverTarget = new File(Util.replaceTokens(tokens, profile.getServerJarPath()));
+        planVanilla(plan, "server", new File(target, profile.getMinecraft() + ".json"), serverTarget);
+
         List<File> libDirs = new ArrayList<>();
         File mcLibDir = new File(SimpleInstaller.getMCDir(), "libraries");
         if (mcLibDir.exists()) {
             libDirs.add(mcLibDir);
         }
-        if (!downloadLibraries(librariesDir, optionals, libDirs))
-            return false;
-
-        checkCancel();
-        if (!processors.process(librariesDir, serverTarget, target, installer))
-            return false;
-
-        // TODO: Optionals
-        //if (!OptionalLibrary.saveModListJson(librariesDir, new File(target, "mods/mod_list.json"), VersionInfo.getOptionals(), optionals))
-        //    return false;
-
-        return true;
+        planLibraries(plan, librariesDir, optionals, libDirs);
+        processors.plan(plan, librariesDir, serverTarget, target, installer);
+        return plan;
     }
 
     @Override
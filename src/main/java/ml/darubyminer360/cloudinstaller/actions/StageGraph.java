@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * The steps of an install and what each of them needs, so independent steps run at the same time.
+ *
+ * A stage starts once all of its dependencies have succeeded, and is skipped if any of them failed. Once every
+ * stage is done the chain of stages that decided how long the install took is logged.
+ */
+class StageGraph {
+    private final ProgressCallback monitor;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final List<Runnable> cancelHooks = new ArrayList<>();
+
+    StageGraph(ProgressCallback monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Adds a stage. Dependencies must already have been added.
+     *
+     * @return Completes with whether the stage succeeded, for work outside the graph that needs it
+     */
+    CompletableFuture<Boolean> add(String name, Stage stage, String... depends) {
+        Node node = new Node(name, stage);
+        for (String dep : depends) {
+            Node other = nodes.get(dep);
+            if (other == null)
+                throw new IllegalArgumentException("Unknown stage " + dep + " needed by " + name);
+            node.depends.add(other);
+        }
+        nodes.put(name, node);
+        return node.future;
+    }
+
+    /**
+     * Adds something to run if the install is canceled while the stages are running, to stop work the stages handed off to other threads.
+     */
+    void onCancel(Runnable hook) {
+        cancelHooks.add(hook);
+    }
+
+    /**
+     * Runs every stage and waits for them to finish.
+     * @return false if any stage failed
+     */
+    boolean run() throws ActionCanceledException {
+        AtomicInteger count = new AtomicInteger(1);
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Install Stage #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+
+        try {
+            for (Node node : nodes.values()) {
+                CompletableFuture<?>[] depends = node.depends.stream().map(n -> n.future).toArray(CompletableFuture[]::new);
+                CompletableFuture.allOf(depends).thenRunAsync(() -> execute(node), executor);
+            }
+
+            boolean success = true;
+            for (Node node : nodes.values()) {
+                try {
+                    success &= node.future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    success = false;
+                }
+            }
+            for (Node node : nodes.values()) {
+                if (node.canceled != null)
+                    throw node.canceled;
+            }
+            logCriticalPath(start);
+            return success;
+        } catch (InterruptedException e) {
+            cancelHooks.forEach(Runnable::run);
+            executor.shutdownNow();
+            throw new ActionCanceledException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void execute(Node node) {
+        if (node.depends.stream().anyMatch(n -> !n.future.join())) {
+            node.future.complete(false);
+            return;
+        }
+
+        node.start = System.nanoTime();
+        boolean result = false;
+        try {
+            result = node.stage.run();
+        } catch (ActionCanceledException e) {
+            node.canceled = e;
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace();
+            monitor.message("Unexpected error in " + node.name + ": " + e.toString());
+        } finally {
+            // Always completed, anything still waiting on this stage would hang otherwise
+            node.end = System.nanoTime();
+            node.future.complete(result);
+        }
+    }
+
+    private void logCriticalPath(long start) {
+        Node last = nodes.values().stream().filter(n -> n.end != 0).max((a, b) -> Long.compare(a.end, b.end)).orElse(null);
+        if (last == null)
+            return;
+
+        // Walk back through whichever dependency finished last, that is what each stage ended up waiting for
+        List<Node> path = new ArrayList<>();
+        for (Node node = last; node != null; node = node.depends.stream().max((a, b) -> Long.compare(a.end, b.end)).orElse(null))
+            path.add(node);
+        Collections.reverse(path);
+
+        String stages = path.stream().map(n -> String.format(Locale.ENGLISH, "%s %.2fs", n.name, (n.end - n.start) / 1e9)).collect(Collectors.joining(" > "));
+        monitor.message(String.format(Locale.ENGLISH, "Critical path: %s (total %.2fs)", stages, (last.end - start) / 1e9));
+    }
+
+    interface Stage {
+        boolean run() throws ActionCanceledException;
+    }
+
+    private static class Node {
+        private final String name;
+        private final Stage stage;
+        private final List<Node> depends = new ArrayList<>();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private volatile long start;
+        private volatile long end;
+        private volatile ActionCanceledException canceled;
+
+        private Node(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.reflect.TypeToken;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Host wide store of verified files, keyed by their SHA-1.
+ *
+ * Every file that is downloaded and verified is added here, and later installs, even into other
+ * directories, take it from here instead of the network. Files are linked into place where possible,
+ * and the least recently used entries are removed once the cache grows past its size budget.
+ */
+public class ArtifactCache {
+    private static final AtomicInteger TEMP_COUNTER = new AtomicInteger();
+
+    private static File root = new File(System.getProperty("user.home", "."), ".cloudinstaller/cache");
+    private static long maxSize = 4096L * 1024 * 1024;
+    private static boolean enabled = true;
+    // sha1 -> last time the entry was used, so hard linked copies elsewhere don't disturb the ordering.
+    private static Map<String, Long> usage = null;
+    // sha1 -> what the object looked like when it was last hashed, so cache hits don't read the whole file again
+    private static Map<String, FileStamp> verified = null;
+
+    public static synchronized void configure(File root, long maxSize) {
+        ArtifactCache.root = root;
+        ArtifactCache.maxSize = maxSize;
+        ArtifactCache.usage = null;
+        ArtifactCache.verified = null;
+    }
+
+    public static synchronized void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized File getRoot() {
+        return root;
+    }
+
+    public static boolean contains(String sha1) {
+        File object = getObject(sha1);
+        return object != null && object.isFile();
+    }
+
+    /**
+     * Places the cached copy of the specified file at the target, if there is a valid one.
+     */
+    public static boolean materialize(String sha1, long size, File target) {
+        File object = getObject(sha1);
+        if (object == null || !object.isFile() || (size > 0 && object.length() != size))
+            return false;
+
+        if (!isVerified(sha1, object)) {
+            // Something changed the file behind our back, most likely through a hard link.
+            object.delete();
+            return false;
+        }
+
+        try {
+            Materializer.materialize(object, target, false);
+            touch(sha1);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Adds a file that has already been verified against the specified SHA-1.
+     */
+    public static void store(String sha1, File file) {
+        File object = getObject(sha1);
+        if (object == null)
+            return;
+        if (!object.isFile()) {
+            try {
+                Materializer.materialize(file, object, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            FileStamp stamp = FileStamp.of(object);
+            if (stamp != null)
+                getVerified().put(sha1, stamp);
+        }
+        touch(sha1);
+    }
+
+    /**
+     * Checks the object still has the specified contents. Hashing a large object costs a full read, so the result is
+     * remembered and trusted for as long as the object's size, modification time and file key stay the same.
+     */
+    private static boolean isVerified(String sha1, File object) {
+        FileStamp stamp = FileStamp.of(object);
+        if (stamp == null)
+            return false;
+        if (stamp.equals(getVerified().get(sha1)))
+            return true;
+        try {
+            if (!sha1.equals(HashFunction.SHA1.hash(object)))
+                return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        getVerified().put(sha1, stamp);
+        return true;
+    }
+
+    /**
+     * Writes the usage data, and removes the least recently used entries until the cache fits its budget.
+     */
+    public static synchronized void save() {
+        if (!enabled || usage == null)
+            return;
+
+        root.mkdirs();
+        // Other installs may be saving at the same time, so merge with what they wrote instead of replacing it
+        try (FileChannel channel = FileChannel.open(new File(root, "cache.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock(); // Released when the channel is closed
+            Map<String, Long> merged = read(new File(root, "usage.json"), new TypeToken<Map<String, Long>>(){}.getType());
+            usage.forEach((sha1, time) -> merged.merge(sha1, time, Math::max));
+            usage = merged;
+            evict();
+            usage.keySet().removeIf(sha1 -> !contains(sha1));
+            write(new File(root, "usage.json"), usage);
+
+            Map<String, FileStamp> stamps = read(new File(root, "verified.json"), new TypeToken<Map<String, FileStamp>>(){}.getType());
+            stamps.putAll(getVerified());
+            stamps.keySet().removeIf(sha1 -> !contains(sha1));
+            write(new File(root, "verified.json"), stamps);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void evict() {
+        List<File> objects = new ArrayList<>();
+        File[] buckets = new File(root, "objects").listFiles(File::isDirectory);
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] files = bucket.listFiles(File::isFile);
+                if (files != null) {
+                    for (File file : files)
+                        objects.add(file);
+                }
+            }
+        }
+
+        long total = objects.stream().mapToLong(File::length).sum();
+        if (total <= maxSize)
+            return;
+        objects.sort((a, b) -> Long.compare(usage.getOrDefault(a.getName(), a.lastModified()), usage.getOrDefault(b.getName(), b.lastModified())));
+        for (File file : objects) {
+            if (total <= maxSize)
+                break;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                usage.remove(file.getName());
+                getVerified().remove(file.getName());
+            }
+        }
+    }
+
+    private static <T> Map<String, T> read(File file, Type type) {
+        Map<String, T> values = new HashMap<>();
+        if (!file.exists())
+            return values;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            Map<String, T> loaded = Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), type);
+            if (loaded != null) {
+                loaded.values().removeIf(Objects::isNull);
+                values.putAll(loaded);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        return values;
+    }
+
+    private static void write(File file, Object value) throws IOException {
+        File temp = Transfer.getTemp(file, ".tmp" + TEMP_COUNTER.incrementAndGet());
+        try {
+            Files.write(temp.toPath(), Util.GSON.toJson(value).getBytes(StandardCharsets.UTF_8));
+            Transfer.moveIntoPlace(temp, file);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private static synchronized File getObject(String sha1) {
+        if (!enabled || sha1 == null || sha1.length() != 40)
+            return null;
+        return new File(root, "objects/" + sha1.substring(0, 2) + '/' + sha1);
+    }
+
+    private static synchronized void touch(String sha1) {
+        if (usage == null)
+            usage = read(new File(root, "usage.json"), new TypeToken<Map<String, Long>>(){}.getType());
+        usage.put(sha1, System.currentTimeMillis());
+    }
+
+    private static synchronized Map<String, FileStamp> getVerified() {
+        if (verified == null)
+            verified = new ConcurrentHashMap<>(ArtifactCache.<FileStamp>read(new File(root, "verified.json"), new TypeToken<Map<String, FileStamp>>(){}.getType()));
+        return verified;
+    }
+
+    /**
+     * What a file looked like when it was last hashed.
+     */
+    private static class FileStamp {
+        private long size;
+        private long modified;
+        private String key;
+
+        private static FileStamp of(File file) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                FileStamp stamp = new FileStamp();
+                stamp.size = attrs.size();
+                stamp.modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                stamp.key = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+                return stamp;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp))
+                return false;
+            FileStamp other = (FileStamp)o;
+            return size == other.size && modified == other.modified && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, key);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks failures per host, so a host that keeps failing is skipped instead of being retried for every file.
+ *
+ * After several failures in a row the breaker opens and requests to the host are refused for a while.
+ * Once that passes a single request is let through; if it works the breaker closes again, otherwise it reopens.
+ */
+public class CircuitBreaker {
+    private static final int THRESHOLD = 3;
+    private static final long OPEN_TIME = TimeUnit.SECONDS.toMillis(30);
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private int failures = 0;
+    private long openUntil = 0;
+    private boolean trial = false;
+
+    public static CircuitBreaker forUrl(String url) {
+        String host;
+        try {
+            host = URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            host = null;
+        }
+        return BREAKERS.computeIfAbsent(host == null ? "" : host.toLowerCase(Locale.ENGLISH), k -> new CircuitBreaker());
+    }
+
+    /**
+     * Checks if a request may be sent to this host right now. While half open only one caller gets a yes.
+     */
+    public synchronized boolean allowRequest() {
+        if (failures < THRESHOLD)
+            return true;
+        if (System.currentTimeMillis() < openUntil || trial)
+            return false;
+        trial = true;
+        return true;
+    }
+
+    /**
+     * Checks if the host is usable without claiming the half open trial request.
+     */
+    public synchronized boolean isClosed() {
+        return failures < THRESHOLD || (!trial && System.currentTimeMillis() >= openUntil);
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trial = false;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        trial = false;
+        if (failures >= THRESHOLD)
+            openUntil = System.currentTimeMillis() + OPEN_TIME;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.reflect.TypeToken;
+
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Remembers the SHA-1 of files in an install, so re-running an install over an existing tree doesn't hash
+ * every library and processor output again.
+ *
+ * Entries are keyed by the path relative to the install root and only trusted while the file's size,
+ * modification time and file key (the inode, where the platform has one) are unchanged. Files outside the
+ * root are never indexed.
+ */
+public class HashIndex {
+    private static final String FILE = "installer_hashes.json";
+
+    private static HashIndex active = null;
+
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    private HashIndex(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Makes the index of the specified install root the active one, loading it from disk.
+     */
+    public static synchronized void open(File root) {
+        Path path = root.toPath().toAbsolutePath().normalize();
+        if (active != null && active.root.equals(path))
+            return;
+        if (active != null)
+            active.write();
+        active = new HashIndex(path);
+        active.load();
+    }
+
+    /**
+     * Writes the active index to disk if anything changed.
+     */
+    public static synchronized void save() {
+        if (active != null)
+            active.write();
+    }
+
+    /**
+     * Gets the recorded SHA-1 of the file, or null if it isn't known or the file changed since it was recorded.
+     */
+    public static String get(File file) {
+        HashIndex index = getActive();
+        String key = index == null ? null : index.getKey(file);
+        if (key == null)
+            return null;
+        Entry entry = index.entries.get(key);
+        return entry != null && entry.matches(readAttributes(file)) ? entry.sha1 : null;
+    }
+
+    /**
+     * Records the SHA-1 of the file as it is right now.
+     */
+    public static void record(File file, String sha1) {
+        HashIndex index = getActive();
+        String key = index == null || sha1 == null ? null : index.getKey(file);
+        BasicFileAttributes attrs = key == null ? null : readAttributes(file);
+        if (attrs == null)
+            return;
+        Entry entry = new Entry();
+        entry.size = attrs.size();
+        entry.modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        entry.key = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+        entry.sha1 = sha1;
+        index.entries.put(key, entry);
+        index.dirty = true;
+    }
+
+    private static synchronized HashIndex getActive() {
+        return active;
+    }
+
+    private String getKey(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(root))
+            return null;
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void load() {
+        File file = root.resolve(FILE).toFile();
+        if (!file.exists())
+            return;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            Map<String, Entry> loaded = Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), new TypeToken<Map<String, Entry>>(){}.getType());
+            if (loaded != null) {
+                loaded.values().removeIf(Objects::isNull);
+                entries.putAll(loaded);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write() {
+        if (!dirty)
+            return;
+        dirty = false;
+        entries.keySet().removeIf(key -> !Files.exists(root.resolve(key)));
+
+        File file = root.resolve(FILE).toFile();
+        File temp = Transfer.getTemp(file, ".tmp");
+        try {
+            Files.write(temp.toPath(), Util.GSON.toJson(entries).getBytes(StandardCharsets.UTF_8));
+            Transfer.moveIntoPlace(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    private static class Entry {
+        private long size;
+        private long modified;
+        private String key;
+        private String sha1;
+
+        private boolean matches(BasicFileAttributes attrs) {
+            return attrs != null && sha1 != null &&
+                attrs.size() == size &&
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) == modified &&
+                Objects.equals(attrs.fileKey() == null ? null : attrs.fileKey().toString(), key);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Thrown when a server answers with a status code other than 2xx.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final long retryAfter;
+
+    public HttpStatusException(int status, URI uri) {
+        this(status, uri, -1);
+    }
+
+    public HttpStatusException(int status, URI uri, long retryAfter) {
+        super("Server returned HTTP " + status + " for " + uri);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Milliseconds the server asked us to wait through its Retry-After header, or -1 if it did not say.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Shared HTTP client for everything the installer downloads.
+ *
+ * A single {@link HttpClient} is used so connections to the same host are kept alive and reused,
+ * and HTTP/2 is negotiated where the server supports it so parallel downloads share one connection.
+ */
+public class HttpTransport {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    // Time allowed until the response headers arrive, the body itself may take longer.
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    // Time a read of the body may wait without receiving any data.
+    private static final long READ_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final BodyHandler<InputStream> BODY = info -> BodySubscribers.mapping(BodySubscribers.ofInputStream(), in -> new IdleTimeoutInputStream(in, READ_TIMEOUT));
+
+    // Requested url -> url the response finally came from, recorded in lockfiles
+    private static final Map<String, String> REDIRECTS = new ConcurrentHashMap<>();
+    // Requested url -> url a lockfile recorded it redirecting to, tried first and dropped once it fails
+    private static final Map<String, String> SHORTCUTS = new ConcurrentHashMap<>();
+
+    private static SSLContext sslContext = null;
+    private static HttpClient client = null;
+
+    /**
+     * Replaces the SSL context used for https connections, used by FixSSL to add extra trusted roots.
+     */
+    public static synchronized void setSSLContext(SSLContext context) {
+        sslContext = context;
+        client = null;
+    }
+
+    public static synchronized HttpClient getClient() {
+        if (client == null) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT);
+            if (sslContext != null)
+                builder.sslContext(sslContext);
+            client = builder.build();
+        }
+        return client;
+    }
+
+    public static HttpRequest.Builder newRequest(String address) throws IOException {
+        try {
+            return HttpRequest.newBuilder(URI.create(address)).timeout(REQUEST_TIMEOUT);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid url: " + address, e);
+        }
+    }
+
+    /**
+     * Sends requests for the address to the target first, skipping a redirect recorded earlier.
+     * If the target fails the address itself is requested, so a stale target never breaks a download.
+     */
+    public static void addShortcut(String address, String target) {
+        if (!address.equals(target))
+            SHORTCUTS.put(address, target);
+    }
+
+    /**
+     * Sends the request and returns the response, throwing if the server did not answer with a 2xx code.
+     */
+    public static HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        String address = request.uri().toString();
+        String shortcut = SHORTCUTS.get(address);
+        if (shortcut != null) {
+            try {
+                HttpResponse<InputStream> response = sendDirect(HttpRequest.newBuilder(request, (name, value) -> true).uri(URI.create(shortcut)).build());
+                REDIRECTS.put(address, response.uri().toString());
+                return response;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException | IllegalArgumentException e) {
+                SHORTCUTS.remove(address, shortcut);
+            }
+        }
+        return sendDirect(request);
+    }
+
+    private static HttpResponse<InputStream> sendDirect(HttpRequest request) throws IOException {
+        HttpResponse<InputStream> response;
+        try {
+            response = getClient().send(request, BODY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+        }
+        int status = response.statusCode();
+        if (status < 200 || status > 299) {
+            response.body().close();
+            throw new HttpStatusException(status, request.uri(), getRetryAfter(response));
+        }
+        if (!response.uri().equals(request.uri()))
+            REDIRECTS.put(request.uri().toString(), response.uri().toString());
+        return response;
+    }
+
+    /**
+     * Gets the url the specified address was redirected to when it was last requested, or the address itself.
+     */
+    public static String getFinalUrl(String address) {
+        return REDIRECTS.getOrDefault(address, address);
+    }
+
+    public static HttpResponse<InputStream> get(String address) throws IOException {
+        return send(newRequest(address).GET().build());
+    }
+
+    /**
+     * Opens a stream to the specified address. Compressed requests ask the server for gzip, which should
+     * only be used for documents like json, never for files whose checksum is verified.
+     * Non http addresses, such as file urls given as a mirror, are opened directly.
+     */
+    public static InputStream open(String address, boolean compressed) throws IOException {
+        if (!address.startsWith("http:") && !address.startsWith("https:"))
+            return new URL(address).openStream();
+
+        HttpRequest.Builder request = newRequest(address).GET();
+        if (compressed)
+            request.header("Accept-Encoding", "gzip");
+        return decode(send(request.build()));
+    }
+
+    private static long getRetryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null)
+            return -1;
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    public static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+        return "gzip".equalsIgnoreCase(encoding) ? new GZIPInputStream(response.body()) : response.body();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails a read that gets no data for too long.
+ *
+ * The http client only times out waiting for the response headers, so a body that stops arriving part way would
+ * block its reader forever. A shared timer closes streams whose current read has been waiting longer than the
+ * timeout, and the read then fails with a {@link SocketTimeoutException}, which is retried like any other timeout.
+ * Time spent between reads, for example while the caller is throttling or writing to disk, doesn't count.
+ */
+class IdleTimeoutInputStream extends FilterInputStream {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Download Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long timeout;
+    private final ScheduledFuture<?> check;
+    private volatile long readingSince = 0;
+    private volatile boolean timedOut = false;
+
+    /**
+     * @param timeout How long, in milliseconds, a single read may wait for data
+     */
+    IdleTimeoutInputStream(InputStream in, long timeout) {
+        super(in);
+        this.timeout = timeout;
+        long period = Math.max(1, timeout / 4);
+        this.check = TIMER.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        long since = readingSince;
+        if (since == 0 || System.nanoTime() - since < TimeUnit.MILLISECONDS.toNanos(timeout))
+            return;
+        timedOut = true;
+        check.cancel(false);
+        try {
+            in.close(); // Wakes up the blocked read
+        } catch (IOException e) {
+            // Nothing to do, the read is failed either way
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        begin();
+        try {
+            return end(in.read());
+        } catch (IOException e) {
+            throw timedOut ? timeout(e) : e;
+        } finally {
+            readingSince = 0;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        begin();
+        try {
+            return end(in.read(b, off, len));
+        } catch (IOException e) {
+            throw timedOut ? timeout(e) : e;
+        } finally {
+            readingSince = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        check.cancel(false);
+        super.close();
+    }
+
+    private void begin() throws IOException {
+        if (timedOut)
+            throw timeout(null);
+        readingSince = System.nanoTime();
+    }
+
+    private int end(int result) throws IOException {
+        // The stream may report a normal end when it was closed under the read
+        if (result == -1 && timedOut)
+            throw timeout(null);
+        return result;
+    }
+
+    private SocketTimeoutException timeout(IOException cause) {
+        SocketTimeoutException e = new SocketTimeoutException("No data received for " + timeout + "ms");
+        if (cause != null)
+            e.initCause(cause);
+        return e;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+
+import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+
+/**
+ * Makes sure the same file is only downloaded once at a time, no matter how many threads or actions ask for it.
+ *
+ * Fetches are keyed by both the target file and the url. A second request for the same target just waits for the
+ * first and shares its result, two downloads writing the same part file would corrupt it. A request for the same url
+ * to a different target waits as well, and then copies the finished file instead of downloading it again.
+ */
+public class InFlight {
+    private static final Map<String, Flight> FLIGHTS = new HashMap<>();
+
+    /**
+     * Runs the fetch, unless the target or url is already being fetched, in which case that result is used.
+     *
+     * @param sha1 The expected checksum, used to check a file copied from another target. May be null
+     */
+    public static boolean fetch(ProgressCallback monitor, String url, String sha1, File target, BooleanSupplier fetch) {
+        String path = target.getAbsoluteFile().toPath().normalize().toString();
+        Flight flight;
+        boolean owner;
+        synchronized (FLIGHTS) {
+            flight = FLIGHTS.get(path);
+            if (flight == null)
+                flight = FLIGHTS.get(url);
+            owner = flight == null;
+            if (owner) {
+                flight = new Flight(target, path);
+                FLIGHTS.put(path, flight);
+                FLIGHTS.put(url, flight);
+            }
+        }
+
+        if (owner) {
+            boolean result = false;
+            try {
+                result = fetch.getAsBoolean();
+                return result;
+            } finally {
+                synchronized (FLIGHTS) {
+                    FLIGHTS.remove(path, flight);
+                    FLIGHTS.remove(url, flight);
+                }
+                flight.result.complete(result);
+            }
+        }
+
+        monitor.message("  Already being downloaded to " + flight.target + ", waiting for it");
+        try {
+            if (!flight.result.get())
+                return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (flight.path.equals(path))
+            return true;
+
+        try {
+            Materializer.materialize(flight.target, target, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            monitor.message("    Failed to copy " + flight.target + ": " + e.toString());
+            return false;
+        }
+        if (sha1 != null && !sha1.equals(DownloadUtils.getSha1(target))) {
+            monitor.message("    Copy of " + flight.target + " has an invalid checksum, deleting it");
+            target.delete();
+            return false;
+        }
+        monitor.message("    Copied from " + flight.target);
+        return true;
+    }
+
+    private static class Flight {
+        private final File target;
+        private final String path;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Flight(File target, String path) {
+            this.target = target;
+            this.path = path;
+        }
+    }
+}
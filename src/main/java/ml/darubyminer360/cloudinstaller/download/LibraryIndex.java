@@ -0,0 +1,334 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Index of the files in local library directories, such as ~/.m2/repository or an existing .minecraft/libraries.
+ *
+ * Each directory is walked once, in the background, and the listing is kept in the shared cache for a while, so
+ * finding a listed library doesn't cost a lookup per directory. Files added since the walk are still found by path,
+ * a path missing from the listing is looked up on disk and then remembered. Files can be found by their maven path,
+ * or by SHA-1 when the same file is stored under a different path. Hashes are only computed for files that could
+ * match, by path or by size, and are remembered between runs for as long as the file's size and modification time
+ * don't change.
+ */
+public class LibraryIndex {
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+    private static final Set<String> IGNORED = new HashSet<>(Arrays.asList("sha1", "sha256", "sha512", "md5", "asc", "pom", "lastupdated", "repositories", "properties"));
+    private static final Map<List<File>, LibraryIndex> INDEXES = new HashMap<>();
+    // Each directory is loaded or walked once, on its own thread, no matter how many indexes use it
+    private static final Map<File, CompletableFuture<Root>> ROOTS = new ConcurrentHashMap<>();
+    private static final AtomicInteger THREADS = new AtomicInteger(1);
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Library Index #" + THREADS.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static boolean persistent = true;
+
+    private final List<Root> roots = new ArrayList<>();
+    private final Map<Long, List<Entry>> bySize = new ConcurrentHashMap<>();
+    private final Map<String, Entry> bySha1 = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> ready;
+
+    private LibraryIndex(List<File> dirs) {
+        List<CompletableFuture<Root>> loading = new ArrayList<>();
+        for (File dir : dirs)
+            loading.add(ROOTS.computeIfAbsent(dir.getAbsoluteFile(), d -> CompletableFuture.supplyAsync(() -> Root.load(d), EXECUTOR)));
+        // Roots are added in the order of the directories, that is the order they are searched in
+        this.ready = CompletableFuture.allOf(loading.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (CompletableFuture<Root> future : loading) {
+                Root root = future.join();
+                roots.add(root);
+                for (Entry entry : root.entries.values()) {
+                    addBySize(entry);
+                    if (entry.sha1 != null)
+                        bySha1.putIfAbsent(entry.sha1, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the index over the specified directories. Directories that haven't been listed yet start
+     * being listed in the background, {@link #find} waits for them.
+     */
+    public static synchronized LibraryIndex get(List<File> dirs) {
+        List<File> key = new ArrayList<>(dirs);
+        return INDEXES.computeIfAbsent(key, LibraryIndex::new);
+    }
+
+    /**
+     * Sets whether listings are loaded from and saved to the cache directory, independent of the library cache.
+     */
+    public static synchronized void setPersistent(boolean value) {
+        persistent = value;
+    }
+
+    /**
+     * Persists the listings and hashes learned in this run.
+     */
+    public static synchronized void save() {
+        if (!persistent)
+            return;
+        for (CompletableFuture<Root> root : ROOTS.values()) {
+            if (root.isDone() && !root.isCompletedExceptionally())
+                root.join().save();
+        }
+    }
+
+    /**
+     * Finds a local file with the specified contents.
+     *
+     * @param path The maven path of the library, tried first in every directory
+     * @param size The size of the library, or 0 if it isn't known
+     * @return A file whose SHA-1 matches, or null
+     */
+    public File find(String path, String sha1, long size) {
+        try {
+            ready.join();
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        for (Root root : roots) {
+            Entry entry = root.entries.get(path);
+            if (entry == null) {
+                // Added since the directory was walked
+                entry = root.probe(path);
+                if (entry != null)
+                    addBySize(entry);
+            }
+            if (entry != null && sha1.equals(hash(root, entry)))
+                return entry.file;
+        }
+
+        Entry known = bySha1.get(sha1);
+        if (known != null && known.isCurrent() && sha1.equals(hash(known.root, known)))
+            return known.file;
+
+        if (size > 0) {
+            for (Entry candidate : bySize.getOrDefault(size, Collections.emptyList())) {
+                if (sha1.equals(hash(candidate.root, candidate)))
+                    return candidate.file;
+            }
+        }
+        return null;
+    }
+
+    private void addBySize(Entry entry) {
+        List<Entry> sized = bySize.computeIfAbsent(entry.size, k -> new CopyOnWriteArrayList<>());
+        // Probing can find the same entry from several threads, or from another index over the same directory
+        if (!sized.contains(entry))
+            sized.add(entry);
+    }
+
+    private String hash(Root root, Entry entry) {
+        synchronized (entry) {
+            if (!entry.isCurrent()) {
+                BasicFileAttributes attrs = readAttributes(entry.file);
+                if (attrs == null || !attrs.isRegularFile())
+                    return null;
+                if (attrs.size() != entry.size) {
+                    bySize.getOrDefault(entry.size, Collections.emptyList()).remove(entry);
+                    entry.size = attrs.size();
+                    addBySize(entry);
+                }
+                entry.modified = attrs.lastModifiedTime().toMillis();
+                entry.sha1 = null;
+            }
+            if (entry.sha1 == null) {
+                entry.sha1 = DownloadUtils.getSha1(entry.file);
+                if (entry.sha1 == null)
+                    return null;
+                bySha1.putIfAbsent(entry.sha1, entry);
+                root.dirty = true;
+            }
+            return entry.sha1;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Root {
+        private transient File dir;
+        private long time;
+        private Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private transient volatile boolean dirty = false;
+
+        private static Root load(File dir) {
+            Root root = null;
+            File file = getFile(dir);
+            if (persistent && file.exists()) {
+                try (InputStream stream = Files.newInputStream(file.toPath())) {
+                    root = Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), Root.class);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (root == null || root.entries == null) {
+                root = new Root();
+            } else {
+                root.entries = new ConcurrentHashMap<>(root.entries);
+            }
+            root.dir = dir;
+
+            if (System.currentTimeMillis() - root.time >= TTL)
+                root.scan();
+            for (Map.Entry<String, Entry> e : root.entries.entrySet())
+                e.getValue().attach(root, e.getKey());
+            return root;
+        }
+
+        /**
+         * Lists a file that wasn't there when the directory was walked, or returns null if it still isn't.
+         */
+        private Entry probe(String path) {
+            File file = new File(dir, path);
+            BasicFileAttributes attrs = readAttributes(file);
+            if (attrs == null || !attrs.isRegularFile())
+                return null;
+            Entry entry = new Entry();
+            entry.size = attrs.size();
+            entry.modified = attrs.lastModifiedTime().toMillis();
+            entry.attach(this, path);
+            Entry existing = entries.putIfAbsent(path, entry);
+            if (existing != null)
+                return existing;
+            dirty = true;
+            return entry;
+        }
+
+        private void scan() {
+            Map<String, Entry> old = entries;
+            Map<String, Entry> found = new ConcurrentHashMap<>();
+            Path base = dir.toPath();
+            try {
+                Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile() || IGNORED.contains(getExtension(file.getFileName().toString())))
+                            return FileVisitResult.CONTINUE;
+                        String path = base.relativize(file).toString().replace('\\', '/');
+                        Entry entry = new Entry();
+                        entry.size = attrs.size();
+                        entry.modified = attrs.lastModifiedTime().toMillis();
+                        Entry previous = old.get(path);
+                        if (previous != null && previous.size == entry.size && previous.modified == entry.modified)
+                            entry.sha1 = previous.sha1;
+                        found.put(path, entry);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            entries = found;
+            time = System.currentTimeMillis();
+            dirty = true;
+        }
+
+        private void save() {
+            if (!dirty)
+                return;
+            dirty = false;
+            File file = getFile(dir);
+            File temp = Transfer.getTemp(file, ".tmp");
+            try {
+                file.getParentFile().mkdirs();
+                Files.write(temp.toPath(), Util.GSON.toJson(this).getBytes(StandardCharsets.UTF_8));
+                Transfer.moveIntoPlace(temp, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                temp.delete();
+            }
+        }
+
+        private static File getFile(File dir) {
+            return new File(ArtifactCache.getRoot(), "libraries/" + HashFunction.SHA1.hash(dir.getAbsolutePath()) + ".json");
+        }
+
+        private static String getExtension(String name) {
+            int idx = name.lastIndexOf('.');
+            return idx == -1 ? "" : name.substring(idx + 1).toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static class Entry {
+        private long size;
+        private long modified;
+        private String sha1;
+        private transient Root root;
+        private transient File file;
+
+        private void attach(Root root, String path) {
+            this.root = root;
+            this.file = new File(root.dir, path);
+        }
+
+        private boolean isCurrent() {
+            BasicFileAttributes attrs = readAttributes(file);
+            return attrs != null && attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Places a copy of a local file somewhere else as cheaply as possible.
+ *
+ * A hard link costs nothing but shares the file, so writing to either name changes both. That is fine for the
+ * shared cache, which checks its entries before handing them out, but not for directories we don't own like
+ * ~/.m2, so those are copied by default. Copies are done by the kernel through {@link FileChannel#transferTo}
+ * instead of through a buffer in the JVM.
+ */
+public class Materializer {
+    private static final AtomicInteger TEMP_COUNTER = new AtomicInteger();
+
+    public enum Mode {
+        /** Hard link, falling back to a copy if the file system can't link the two paths. */
+        LINK,
+        /** Always copy. */
+        COPY
+    }
+
+    private static Mode cacheMode = Mode.LINK;
+    private static Mode sharedMode = Mode.COPY;
+
+    /**
+     * Sets how files are moved in and out of the shared cache.
+     */
+    public static void setCacheMode(Mode mode) {
+        cacheMode = mode;
+    }
+
+    public static Mode getCacheMode() {
+        return cacheMode;
+    }
+
+    /**
+     * Sets how files are taken from local library directories, which we must never modify.
+     */
+    public static void setSharedMode(Mode mode) {
+        sharedMode = mode;
+    }
+
+    public static Mode getSharedMode() {
+        return sharedMode;
+    }
+
+    /**
+     * Places the contents of the source at the target, replacing anything already there.
+     * The target only appears once it is complete.
+     *
+     * @param shared True if the source is in a directory we don't own, false if it is in the shared cache
+     * @return True if the target was linked, false if it was copied
+     */
+    public static boolean materialize(File source, File target, boolean shared) throws IOException {
+        File temp = Transfer.getTemp(target, ".tmp" + TEMP_COUNTER.incrementAndGet());
+        try {
+            target.getParentFile().mkdirs();
+            boolean linked = place(source, temp, shared ? sharedMode : cacheMode);
+            Transfer.moveIntoPlace(temp, target);
+            return linked;
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private static boolean place(File source, File target, Mode mode) throws IOException {
+        if (mode == Mode.LINK) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                return true;
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                // Different volumes, or a file system without links
+                target.delete();
+            }
+        }
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size)
+                position += in.transferTo(position, size - position, out);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Persistent cache for small metadata documents such as the version manifest, version jsons and mirror lists.
+ *
+ * Documents are kept with their ETag and Last-Modified values. Fresh entries are used without touching the
+ * network, older ones are revalidated with a conditional request, and if the network is unavailable whatever
+ * is cached is used instead of failing the install.
+ */
+public class MetadataCache {
+    public static final long MANIFEST_AGE = TimeUnit.MINUTES.toMillis(10);
+    public static final long MIRROR_LIST_AGE = TimeUnit.HOURS.toMillis(1);
+    public static final long VERSION_AGE = TimeUnit.DAYS.toMillis(7);
+
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+    private static final Map<String, byte[]> MEMORY = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the document at the specified url.
+     *
+     * @param maxAge How old, in milliseconds, a cached copy may be before it is revalidated with the server
+     * @param offline If true the network is never used, any cached copy is returned
+     * @return The document, or null if it could not be downloaded and there is no cached copy
+     */
+    public static byte[] get(String url, long maxAge, boolean offline) {
+        synchronized (LOCKS.computeIfAbsent(url, k -> new Object())) {
+            byte[] memory = MEMORY.get(url);
+            if (memory != null)
+                return memory;
+
+            File data = getFile(url, ".json");
+            File metaFile = getFile(url, ".meta");
+            Meta meta = data != null && data.exists() ? readMeta(metaFile) : null;
+            try {
+                if (meta != null && (offline || System.currentTimeMillis() - meta.fetched < maxAge))
+                    return remember(url, Files.readAllBytes(data.toPath()));
+                if (offline) {
+                    System.out.println("Offline Mode: Not downloading: " + url);
+                    return null;
+                }
+
+                if (!url.startsWith("http:") && !url.startsWith("https:")) {
+                    try (InputStream stream = HttpTransport.open(url, false)) {
+                        return remember(url, readFully(stream));
+                    }
+                }
+
+                HttpRequest.Builder request = HttpTransport.newRequest(url).GET().header("Accept-Encoding", "gzip");
+                if (meta != null && meta.etag != null)
+                    request.header("If-None-Match", meta.etag);
+                if (meta != null && meta.lastModified != null)
+                    request.header("If-Modified-Since", meta.lastModified);
+
+                HttpResponse<InputStream> response;
+                try {
+                    response = HttpTransport.send(request.build());
+                } catch (HttpStatusException e) {
+                    if (meta == null || e.getStatus() != 304)
+                        throw e;
+                    meta.fetched = System.currentTimeMillis();
+                    writeMeta(metaFile, meta);
+                    return remember(url, Files.readAllBytes(data.toPath()));
+                }
+
+                byte[] body;
+                try (InputStream stream = HttpTransport.decode(response)) {
+                    body = readFully(stream);
+                }
+
+                if (data != null) {
+                    Meta updated = new Meta();
+                    updated.url = url;
+                    updated.etag = response.headers().firstValue("ETag").orElse(null);
+                    updated.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+                    updated.fetched = System.currentTimeMillis();
+                    data.getParentFile().mkdirs();
+                    File temp = Transfer.getTemp(data, ".tmp");
+                    Files.write(temp.toPath(), body);
+                    Transfer.moveIntoPlace(temp, data);
+                    writeMeta(metaFile, updated);
+                }
+                return remember(url, body);
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (meta != null) {
+                    System.out.println("Using cached copy of " + url);
+                    try {
+                        return remember(url, Files.readAllBytes(data.toPath()));
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream.transferTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] remember(String url, byte[] data) {
+        MEMORY.put(url, data);
+        return data;
+    }
+
+    private static File getFile(String url, String extension) {
+        if (!ArtifactCache.isEnabled())
+            return null;
+        return new File(ArtifactCache.getRoot(), "meta/" + HashFunction.SHA1.hash(url) + extension);
+    }
+
+    private static Meta readMeta(File file) {
+        if (file == null || !file.exists())
+            return null;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), Meta.class);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void writeMeta(File file, Meta meta) throws IOException {
+        File temp = Transfer.getTemp(file, ".tmp");
+        Files.write(temp.toPath(), Util.GSON.toJson(meta).getBytes(StandardCharsets.UTF_8));
+        Transfer.moveIntoPlace(temp, file);
+    }
+
+    private static class Meta {
+        private String url;
+        private String etag;
+        private String lastModified;
+        private long fetched;
+    }
+}
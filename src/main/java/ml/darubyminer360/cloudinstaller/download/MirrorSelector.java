@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.reflect.TypeToken;
+
+import ml.darubyminer360.cloudinstaller.json.Mirror;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Ranks mirrors by how fast they actually are for this machine.
+ *
+ * Mirrors without recent measurements are probed concurrently with a small HEAD request, and the speed seen
+ * during real downloads is folded in as the install runs. The results are kept between runs, so most installs
+ * don't need to probe at all.
+ */
+public class MirrorSelector {
+    private static final long TTL = TimeUnit.HOURS.toMillis(24);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(3);
+
+    private static List<Mirror> ranked = Collections.emptyList();
+    private static boolean persistent = true;
+
+    /**
+     * Sets whether measurements are loaded from and saved to the cache directory, independent of the library cache.
+     */
+    public static synchronized void setPersistent(boolean value) {
+        persistent = value;
+    }
+
+    /**
+     * Measures the mirrors and returns them sorted from best to worst.
+     */
+    public static synchronized List<Mirror> rank(Mirror[] mirrors) {
+        Map<String, Stats> stats = load();
+        long now = System.currentTimeMillis();
+
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            Stats old = stats.get(mirror.getUrl());
+            if (old != null && now - old.time < TTL) {
+                mirror.setStats(old.latency, old.throughput, old.failures);
+                continue;
+            }
+            probes.add(probe(mirror));
+        }
+        probes.forEach(CompletableFuture::join);
+
+        List<Mirror> list = new ArrayList<>(Arrays.asList(mirrors));
+        list.sort(Comparator.comparingDouble(Mirror::getScore));
+        ranked = Collections.unmodifiableList(list);
+        for (Mirror mirror : list)
+            System.out.println(String.format("Mirror %s: %dms %s", mirror.getUrl(), mirror.getLatency(), mirror.getThroughput() > 0 ? mirror.getThroughput() / 1024 + "KB/s" : "unknown speed"));
+        return ranked;
+    }
+
+    /**
+     * Persists what was learned about the mirrors ranked in this run.
+     */
+    public static synchronized void save() {
+        if (ranked.isEmpty() || !persistent)
+            return;
+        Map<String, Stats> stats = load();
+        long now = System.currentTimeMillis();
+        for (Mirror mirror : ranked) {
+            Stats value = new Stats();
+            value.latency = mirror.getLatency();
+            value.throughput = mirror.getThroughput();
+            value.failures = mirror.getFailures();
+            value.time = now;
+            stats.put(mirror.getUrl(), value);
+        }
+
+        File file = getFile();
+        File temp = Transfer.getTemp(file, ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            Files.write(temp.toPath(), Util.GSON.toJson(stats).getBytes(StandardCharsets.UTF_8));
+            Transfer.moveIntoPlace(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    private static CompletableFuture<Void> probe(Mirror mirror) {
+        HttpRequest request;
+        try {
+            request = HttpTransport.newRequest(mirror.getUrl()).timeout(PROBE_TIMEOUT).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+        } catch (IOException e) {
+            mirror.setStats(-1, -1, 1);
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        // Any answer at all means the mirror is reachable, even a 404 for the directory itself.
+        return HttpTransport.getClient().sendAsync(request, BodyHandlers.discarding())
+            .handle((response, error) -> {
+                if (error != null)
+                    mirror.setStats(-1, -1, 1);
+                else
+                    mirror.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return null;
+            });
+    }
+
+    private static File getFile() {
+        return new File(ArtifactCache.getRoot(), "mirrors.json");
+    }
+
+    private static Map<String, Stats> load() {
+        Map<String, Stats> stats = new HashMap<>();
+        File file = getFile();
+        if (!persistent || !file.exists())
+            return stats;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            Map<String, Stats> loaded = Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), new TypeToken<Map<String, Stats>>(){}.getType());
+            if (loaded != null)
+                stats.putAll(loaded);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        return stats;
+    }
+
+    private static class Stats {
+        private long latency;
+        private long throughput;
+        private int failures;
+        private long time;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+
+/**
+ * Resumable downloads.
+ *
+ * Data is written to a {@code .part} file next to the target, and the server's validator (a strong ETag,
+ * or Last-Modified) is kept in a {@code .part.etag} file. If a download is interrupted the next attempt asks
+ * for the remaining bytes with {@code Range}/{@code If-Range}, so a changed file on the server is sent in full
+ * instead of being stitched onto stale data.
+ */
+public class PartialDownload {
+    static final String PART = ".part";
+    private static final String VALIDATOR = ".part.etag";
+
+    /**
+     * Downloads the url into the part file of the target, resuming a previous attempt if possible.
+     * Every byte of the part file, including ones from a previous attempt, is fed to the digest.
+     * The caller must verify the result and then call {@link #complete(File)} or {@link #discard(File)}.
+     *
+     * @return The completed part file
+     */
+    public static File fetch(ProgressCallback monitor, String url, File target, MessageDigest digest) throws IOException {
+        return fetch(monitor, url, target, digest, null);
+    }
+
+    /**
+     * Same as {@link #fetch(ProgressCallback, String, File, MessageDigest)}, telling the listener about every chunk of new data.
+     */
+    public static File fetch(ProgressCallback monitor, String url, File target, MessageDigest digest, Transfer.Listener listener) throws IOException {
+        File part = Transfer.getTemp(target, PART);
+        File validatorFile = Transfer.getTemp(target, VALIDATOR);
+
+        if (!url.startsWith("http:") && !url.startsWith("https:")) {
+            discard(target);
+            try (InputStream in = HttpTransport.open(url, false);
+                 OutputStream out = Files.newOutputStream(part.toPath())) {
+                Transfer.copy(in, out, listener, digest);
+            }
+            return part;
+        }
+
+        String validator = validatorFile.exists() ? new String(Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim() : null;
+        long offset = part.exists() && validator != null && !validator.isEmpty() ? part.length() : 0;
+        if (offset == 0)
+            discard(target);
+
+        HttpRequest.Builder request = HttpTransport.newRequest(url).GET();
+        if (offset > 0)
+            request.header("Range", "bytes=" + offset + "-").header("If-Range", validator);
+
+        HttpResponse<InputStream> response;
+        try {
+            response = HttpTransport.send(request.build());
+        } catch (HttpStatusException e) {
+            if (offset == 0 || e.getStatus() != 416)
+                throw e;
+            // The part file does not match what the server has, start over.
+            discard(target);
+            return fetch(monitor, url, target, digest, listener);
+        }
+
+        boolean resume = false;
+        if (offset > 0 && response.statusCode() == 206) {
+            if (getRangeStart(response) != offset) {
+                response.body().close();
+                discard(target);
+                return fetch(monitor, url, target, digest, listener);
+            }
+            resume = true;
+            monitor.message("    Resuming download at byte " + offset);
+            try (InputStream in = Files.newInputStream(part.toPath())) {
+                Transfer.copy(in, OutputStream.nullOutputStream(), digest);
+            }
+        }
+
+        String newValidator = getValidator(response);
+        if (newValidator != null)
+            Files.write(validatorFile.toPath(), newValidator.getBytes(StandardCharsets.UTF_8));
+        else
+            validatorFile.delete();
+
+        OpenOption[] options = resume ?
+            new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.APPEND } :
+            new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+        try (InputStream in = response.body();
+             OutputStream out = Files.newOutputStream(part.toPath(), options)) {
+            Transfer.copy(in, out, listener, digest);
+        } catch (IOException e) {
+            if (newValidator == null) // Nothing to resume against next time
+                discard(target);
+            throw e;
+        }
+        return part;
+    }
+
+    /**
+     * Moves the verified part file over the target.
+     */
+    public static void complete(File target) throws IOException {
+        Transfer.moveIntoPlace(Transfer.getTemp(target, PART), target);
+        Transfer.getTemp(target, VALIDATOR).delete();
+        SegmentedDownload.discard(target);
+    }
+
+    /**
+     * Moves resumable partial data from one target to another, so a download started somewhere else continues there.
+     * Nothing is moved if the other target already has partial data of its own.
+     */
+    public static void handOver(File from, File target) {
+        File part = Transfer.getTemp(from, PART);
+        File validator = Transfer.getTemp(from, VALIDATOR);
+        File targetPart = Transfer.getTemp(target, PART);
+        if (!part.isFile() || !validator.isFile() || targetPart.exists())
+            return;
+        try {
+            target.getAbsoluteFile().getParentFile().mkdirs();
+            Files.move(validator.toPath(), Transfer.getTemp(target, VALIDATOR).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(part.toPath(), targetPart.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            discard(target);
+        }
+    }
+
+    /**
+     * Throws away any partial data for the target, including segments of a segmented download.
+     */
+    public static void discard(File target) {
+        Transfer.getTemp(target, PART).delete();
+        Transfer.getTemp(target, VALIDATOR).delete();
+        SegmentedDownload.discard(target);
+    }
+
+    static String getValidator(HttpResponse<?> response) {
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        if (etag != null && !etag.startsWith("W/")) // Weak validators are not allowed in If-Range
+            return etag;
+        return response.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    static long getRangeStart(HttpResponse<?> response) {
+        // Content-Range: bytes 1000-1999/2000
+        String range = response.headers().firstValue("Content-Range").orElse("");
+        if (!range.startsWith("bytes "))
+            return -1;
+        int dash = range.indexOf('-');
+        try {
+            return dash == -1 ? -1 : Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.reflect.TypeToken;
+
+import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Host wide memo of processor runs, so installing the same version into another directory doesn't redo them.
+ *
+ * A run is identified by the hashes of the processor jar, its classpath and every file passed as an argument,
+ * plus the remaining arguments as the profile wrote them, so install specific paths don't matter. The declared
+ * outputs are kept in the {@link ArtifactCache}, and a later run with the same key just places them again.
+ */
+public class ProcessorCache {
+    private static boolean enabled = true;
+
+    public static synchronized void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled && ArtifactCache.isEnabled();
+    }
+
+    /**
+     * Computes the key for a processor run.
+     *
+     * @param template The arguments as written in the install profile
+     * @param args The same arguments with every token resolved
+     * @return The key, or null if the run can't be memoized, for example because it is given a directory
+     */
+    public static String getKey(File jar, List<File> classpath, List<String> template, List<String> args) {
+        if (!isEnabled())
+            return null;
+
+        StringBuilder key = new StringBuilder();
+        if (!appendFile(key, "jar", jar))
+            return null;
+        for (File lib : classpath) {
+            if (!appendFile(key, "classpath", lib))
+                return null;
+        }
+        for (int x = 0; x < args.size(); x++) {
+            File file = new File(args.get(x));
+            if (!file.isAbsolute())
+                key.append("value ").append(args.get(x)).append('\n');
+            else if (file.isDirectory())
+                return null; // We can't tell what in there the processor uses
+            else if (file.isFile()) {
+                if (!appendFile(key, "file", file))
+                    return null;
+            } else
+                key.append("path ").append(template.get(x)).append('\n');
+        }
+        return HashFunction.SHA1.hash(key.toString());
+    }
+
+    private static boolean appendFile(StringBuilder key, String type, File file) {
+        String sha1 = DownloadUtils.getSha1(file);
+        if (sha1 == null)
+            return false;
+        key.append(type).append(' ').append(sha1).append('\n');
+        return true;
+    }
+
+    /**
+     * Places the outputs of an earlier run with the same key, if they were all recorded with the expected hashes.
+     *
+     * @param outputs Output file path to expected SHA-1
+     * @param names Output file path to the output's name in the install profile
+     */
+    public static boolean restore(String key, Map<String, String> outputs, Map<String, String> names) {
+        if (key == null || !isEnabled())
+            return false;
+
+        Map<String, Output> recorded = read(getFile(key));
+        if (recorded == null)
+            return false;
+        for (Entry<String, String> e : outputs.entrySet()) {
+            Output output = recorded.get(names.get(e.getKey()));
+            if (output == null || !e.getValue().equals(output.sha1) || !ArtifactCache.contains(output.sha1))
+                return false;
+        }
+
+        for (Entry<String, String> e : outputs.entrySet()) {
+            Output output = recorded.get(names.get(e.getKey()));
+            File target = new File(e.getKey());
+            if (!ArtifactCache.materialize(output.sha1, output.size, target))
+                return false;
+            HashIndex.record(target, output.sha1);
+        }
+        return true;
+    }
+
+    /**
+     * Records the outputs of a successful run, they must already be verified.
+     *
+     * @see #restore(String, Map, Map)
+     */
+    public static void store(String key, Map<String, String> outputs, Map<String, String> names) {
+        if (key == null || !isEnabled())
+            return;
+
+        Map<String, Output> recorded = new HashMap<>();
+        for (Entry<String, String> e : outputs.entrySet()) {
+            File file = new File(e.getKey());
+            ArtifactCache.store(e.getValue(), file);
+            Output output = new Output();
+            output.sha1 = e.getValue();
+            output.size = file.length();
+            recorded.put(names.get(e.getKey()), output);
+        }
+
+        File file = getFile(key);
+        try {
+            file.getParentFile().mkdirs();
+            File temp = Transfer.getTemp(file, ".tmp");
+            Files.write(temp.toPath(), Util.GSON.toJson(recorded).getBytes(StandardCharsets.UTF_8));
+            Transfer.moveIntoPlace(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static File getFile(String key) {
+        return new File(ArtifactCache.getRoot(), "processors/" + key + ".json");
+    }
+
+    private static Map<String, Output> read(File file) {
+        if (!file.exists())
+            return null;
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), new TypeToken<Map<String, Output>>(){}.getType());
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static class Output {
+        private String sha1;
+        private long size;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request is worth trying again, and how long to wait before doing so.
+ *
+ * Only transient problems are retried: timeouts, dropped connections, 408, 429 and 5xx answers.
+ * Delays grow exponentially with full jitter, so many installs throttled at once don't all come back together,
+ * and a Retry-After header from the server is honored when it is reasonable.
+ */
+public class RetryPolicy {
+    private static final long BASE_DELAY = 500;
+    private static final long MAX_DELAY = 10_000;
+    // Servers asking us to wait longer than this are treated as down, the next source is tried instead.
+    private static final long MAX_RETRY_AFTER = 30_000;
+
+    private static int attempts = 3;
+
+    public static void setAttempts(int value) {
+        attempts = Math.max(1, value);
+    }
+
+    public static int getAttempts() {
+        return attempts;
+    }
+
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException) {
+            HttpStatusException status = (HttpStatusException)e;
+            if (status.getRetryAfter() > MAX_RETRY_AFTER)
+                return false;
+            int code = status.getStatus();
+            return code == 408 || code == 429 || code >= 500;
+        }
+        if (e instanceof SocketTimeoutException || e instanceof HttpTimeoutException || e instanceof ConnectException)
+            return true;
+        if (e instanceof InterruptedIOException) // Canceled by the user
+            return false;
+        // The http client reports dropped connections as plain IOExceptions, subclasses are things like unknown hosts or ssl problems.
+        return e instanceof SocketException || e instanceof EOFException || e.getClass() == IOException.class;
+    }
+
+    /**
+     * Gets how long to wait before the specified retry, starting at 1 for the first retry.
+     */
+    public static long getDelay(int retry, IOException cause) {
+        if (cause instanceof HttpStatusException && ((HttpStatusException)cause).getRetryAfter() >= 0)
+            return ((HttpStatusException)cause).getRetryAfter();
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(retry - 1, 16));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    /**
+     * Waits before the specified retry.
+     * @return false if the thread was interrupted, in which case no further attempts should be made
+     */
+    public static boolean sleep(int retry, IOException cause) {
+        try {
+            Thread.sleep(getDelay(retry, cause));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.json.Util;
+
+/**
+ * Downloads large files over several connections at once.
+ *
+ * The file is split into byte ranges which are fetched concurrently and written straight to their place in a
+ * preallocated {@code .seg} file. Once every range is in, the file is hashed in one pass and handed over as the
+ * target's part file, so it is verified exactly like a normal download. Every range is requested with
+ * {@code If-Range}, so a file that changes on the server part way through fails instead of being mixed.
+ *
+ * How far each range got is kept in a {@code .seg.json} file next to the data, so an interrupted download
+ * continues every range where it stopped instead of starting over.
+ */
+public class SegmentedDownload {
+    private static final String SEGMENTED = ".seg";
+    private static final String STATE = ".seg.json";
+    private static final long MIN_SEGMENT = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // How often the progress of running segments is written out, so even a killed install can resume
+    private static final long SAVE_INTERVAL = 1000;
+    private static final AtomicInteger THREADS = new AtomicInteger(1);
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Segment Downloader #" + THREADS.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static long threshold = 16 * 1024 * 1024;
+    private static int segments = 4;
+
+    public static void setSegments(int value) {
+        segments = Math.max(1, value);
+    }
+
+    public static int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Checks if a file of the specified size is worth downloading in segments. A download that was already
+     * started over a single connection is left to resume that way.
+     */
+    public static boolean isEligible(String url, File target, long size) {
+        return segments > 1 && size >= threshold && (url.startsWith("http:") || url.startsWith("https:")) &&
+            !Transfer.getTemp(target, PartialDownload.PART).exists();
+    }
+
+    /**
+     * Downloads the url in segments into the part file of the target, and feeds the finished file to the digest.
+     * The caller must verify the result and then call {@link PartialDownload#complete(File)} or {@link PartialDownload#discard(File)}.
+     *
+     * @param size The exact size of the file
+     * @return The completed part file
+     * @throws IOException If the server does not support ranges, or a segment could not be downloaded. What was
+     *         downloaded is kept for the next attempt, unless the file changed on the server.
+     */
+    public static File fetch(ProgressCallback monitor, String url, File target, long size, MessageDigest digest) throws IOException {
+        File seg = Transfer.getTemp(target, SEGMENTED);
+        File stateFile = Transfer.getTemp(target, STATE);
+        HttpResponse<InputStream> first = null;
+
+        State loaded = State.load(stateFile, seg, size);
+        if (loaded != null) {
+            monitor.message("    Resuming segmented download, " + loaded.getRemaining() + " bytes left");
+        } else {
+            discard(target);
+            int count = (int)Math.min(segments, (size + MIN_SEGMENT - 1) / MIN_SEGMENT);
+            long length = (size + count - 1) / count;
+
+            // The first range tells us if the server supports ranges at all before any other connection is opened.
+            first = request(url, 0, length - 1, null);
+            String validator = PartialDownload.getValidator(first);
+            if (first.statusCode() != 206 || PartialDownload.getRangeStart(first) != 0 || validator == null) {
+                first.body().close();
+                throw new ProtocolException("Server does not support ranged requests");
+            }
+            loaded = new State(validator, size, count);
+            monitor.message("    Downloading in " + count + " segments");
+        }
+
+        State state = loaded;
+        CircuitBreaker breaker = CircuitBreaker.forUrl(url);
+        AtomicBoolean failed = new AtomicBoolean();
+        try (FileChannel channel = FileChannel.open(seg.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != size)
+                channel.write(ByteBuffer.allocate(1), size - 1);
+
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            for (int x = 0; x < state.positions.length(); x++) {
+                int index = x;
+                HttpResponse<InputStream> response = x == 0 ? first : null;
+                if (state.getPosition(x) > state.getEnd(x))
+                    continue;
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        segment(url, breaker, channel, state, index, response, failed);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, EXECUTOR));
+            }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+            while (true) {
+                try {
+                    all.get(SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    state.save(stateFile);
+                } catch (ExecutionException e) {
+                    break; // Reported below, once every segment has stopped
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download canceled");
+                }
+            }
+
+            IOException error = null;
+            for (CompletableFuture<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    failed.set(true);
+                    if (error == null)
+                        error = e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException)e.getCause()).getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download canceled");
+                }
+            }
+            if (error != null)
+                throw error;
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            channel.position(0);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (ProtocolException e) {
+            // The server changed the file or stopped honoring ranges, what we have can't be continued
+            failed.set(true);
+            discard(target);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            failed.set(true);
+            state.save(stateFile);
+            throw e;
+        }
+
+        File part = Transfer.getTemp(target, PartialDownload.PART);
+        Transfer.moveIntoPlace(seg, part);
+        stateFile.delete();
+        return part;
+    }
+
+    /**
+     * Checks if an earlier segmented download of the target left progress that can be continued.
+     */
+    public static boolean hasProgress(File target) {
+        return Transfer.getTemp(target, STATE).exists();
+    }
+
+    /**
+     * Throws away the segments downloaded so far for the target.
+     */
+    static void discard(File target) {
+        Transfer.getTemp(target, SEGMENTED).delete();
+        Transfer.getTemp(target, STATE).delete();
+    }
+
+    private static void segment(String url, CircuitBreaker breaker, FileChannel channel, State state, int index, HttpResponse<InputStream> response, AtomicBoolean failed) throws IOException {
+        long end = state.getEnd(index);
+        for (int attempt = 1; ; attempt++) {
+            long position = state.getPosition(index);
+            try {
+                if (response == null)
+                    response = request(url, position, end, state.validator);
+                if (response.statusCode() != 206 || PartialDownload.getRangeStart(response) != position) {
+                    response.body().close();
+                    throw new ProtocolException("Server ignored the requested range, the file may have changed");
+                }
+
+                try (InputStream in = response.body()) {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int read;
+                    while (position <= end && (read = in.read(buf)) != -1) {
+                        if (failed.get())
+                            throw new InterruptedIOException("Another segment failed");
+                        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, (int)Math.min(read, end - position + 1));
+                        while (buffer.hasRemaining())
+                            position += channel.write(buffer, position);
+                        state.setPosition(index, position);
+                    }
+                }
+                if (position <= end)
+                    throw new EOFException("Segment ended early at byte " + position);
+                breaker.recordSuccess();
+                return;
+            } catch (IOException e) {
+                // Retries continue from the last byte written, not the start of the segment.
+                response = null;
+                boolean retryable = RetryPolicy.isRetryable(e);
+                if (e instanceof HttpStatusException && !retryable)
+                    breaker.recordSuccess(); // The server answered, it just won't give us this range
+                else if (!(e instanceof InterruptedIOException))
+                    breaker.recordFailure();
+
+                if (failed.get() || !retryable || attempt >= RetryPolicy.getAttempts() || !breaker.isClosed() || !RetryPolicy.sleep(attempt, e)) {
+                    failed.set(true);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static HttpResponse<InputStream> request(String url, long start, long end, String validator) throws IOException {
+        // HTTP/2 would multiplex every range over a single connection, which is exactly the limit this works around.
+        HttpRequest.Builder request = HttpTransport.newRequest(url).GET().version(HttpClient.Version.HTTP_1_1)
+            .header("Range", "bytes=" + start + "-" + end);
+        if (validator != null)
+            request.header("If-Range", validator);
+        return HttpTransport.send(request.build());
+    }
+
+    /**
+     * The validator of the file being downloaded and how far each segment got.
+     */
+    private static class State {
+        private String validator;
+        private long size;
+        private AtomicLongArray positions;
+
+        private State(String validator, long size, int count) {
+            this.validator = validator;
+            this.size = size;
+            this.positions = new AtomicLongArray(count);
+            long length = (size + count - 1) / count;
+            for (int x = 0; x < count; x++)
+                positions.set(x, x * length);
+        }
+
+        /**
+         * Loads the state of an earlier attempt, or returns null if there is nothing usable to resume.
+         */
+        private static State load(File file, File seg, long size) {
+            if (!file.exists() || !seg.exists() || seg.length() != size)
+                return null;
+            try {
+                Saved saved = Util.GSON.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), Saved.class);
+                if (saved == null || saved.validator == null || saved.size != size || saved.positions == null || saved.positions.length == 0)
+                    return null;
+                State state = new State(saved.validator, size, saved.positions.length);
+                for (int x = 0; x < saved.positions.length; x++) {
+                    if (saved.positions[x] < state.positions.get(x) || saved.positions[x] > state.getEnd(x) + 1)
+                        return null;
+                    state.positions.set(x, saved.positions[x]);
+                }
+                return state;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private void save(File file) {
+            Saved saved = new Saved();
+            saved.validator = validator;
+            saved.size = size;
+            saved.positions = new long[positions.length()];
+            for (int x = 0; x < saved.positions.length; x++)
+                saved.positions[x] = positions.get(x);
+            File temp = Transfer.getTemp(file, ".tmp");
+            try {
+                Files.write(temp.toPath(), Util.GSON.toJson(saved).getBytes(StandardCharsets.UTF_8));
+                Transfer.moveIntoPlace(temp, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                temp.delete();
+            }
+        }
+
+        private long getPosition(int index) {
+            return positions.get(index);
+        }
+
+        private void setPosition(int index, long value) {
+            positions.set(index, value);
+        }
+
+        private long getEnd(int index) {
+            long length = (size + positions.length() - 1) / positions.length();
+            return Math.min((index + 1) * length, size) - 1;
+        }
+
+        private long getRemaining() {
+            long remaining = 0;
+            for (int x = 0; x < positions.length(); x++)
+                remaining += getEnd(x) + 1 - positions.get(x);
+            return remaining;
+        }
+    }
+
+    private static class Saved {
+        private String validator;
+        private long size;
+        private long[] positions;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * Helpers for moving bytes to disk exactly once: data is hashed and counted while it is written,
+ * and only moved to its final name once it has been verified.
+ */
+public class Transfer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copies the stream to the output, feeding every byte to the digests on the way.
+     * @return The number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out, MessageDigest... digests) throws IOException {
+        return copy(in, out, null, digests);
+    }
+
+    /**
+     * Copies the stream to the output, feeding every byte to the digests and telling the listener about every chunk.
+     * @param listener May be null
+     * @return The number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out, Listener listener, MessageDigest... digests) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(buf)) != -1) {
+            out.write(buf, 0, count);
+            for (MessageDigest digest : digests)
+                digest.update(buf, 0, count);
+            total += count;
+            if (listener != null)
+                listener.copied(count);
+        }
+        return total;
+    }
+
+    /**
+     * Told about every chunk once it is written, throwing stops the copy.
+     */
+    public interface Listener {
+        void copied(int count) throws IOException;
+    }
+
+    /**
+     * Gets the sibling file used to stage data before it is moved over the target.
+     */
+    public static File getTemp(File target, String extension) {
+        return new File(target.getParentFile(), target.getName() + extension);
+    }
+
+    /**
+     * Moves a fully written and verified file over the target, atomically where the file system allows it.
+     */
+    public static void moveIntoPlace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -21,11 +21,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
 import java.util.stream.Collectors;
 
 import ml.darubyminer360.cloudinstaller.SimpleInstaller;
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
+import ml.darubyminer360.cloudinstaller.download.MirrorSelector;
 
 public class Install extends Spec {
     // Profile name to install and direct at this new version
@@ -58,7 +58,8 @@ public class Install extends Spec {
     protected Map<String, DataFile> data;
 
     // non-serialized values
-    private Mirror mirror;
+    // Gson doesn't run field initializers for classes without a no-arg constructor, so this starts out null
+    private List<Mirror> mirrors;
     private boolean triedMirrors = false;
 
     public String getProfile() {
@@ -101,21 +102,35 @@ public class Install extends Spec {
         return mirrorList;
     }
 
-    public Mirror getMirror() {
-        if (mirror != null)
-            return mirror;
-        if (SimpleInstaller.mirror != null) {
-            mirror = new Mirror("Mirror", "", "", SimpleInstaller.mirror.toString());
-            return mirror;
+    /**
+     * Gets the best mirror that has not been failing, or null if downloads should go straight to the origin.
+     */
+    public synchronized Mirror getMirror() {
+        for (Mirror mirror : getMirrors()) {
+            if (mirror.isHealthy())
+                return mirror;
         }
-        if (getMirrorList() == null)
-            return null;
+        return null;
+    }
+
+    /**
+     * Gets all known mirrors, ranked from best to worst.
+     */
+    public synchronized List<Mirror> getMirrors() {
         if (!triedMirrors) {
             triedMirrors = true;
-            Mirror[] list = DownloadUtils.downloadMirrors(getMirrorList());
-            mirror = list == null || list.length == 0 ? null : list[new Random().nextInt(list.length)];
+            if (SimpleInstaller.mirror != null) {
+                mirrors = Collections.singletonList(new Mirror("Mirror", "", "", SimpleInstaller.mirror.toString()));
+            } else if (SimpleInstaller.lockfile != null && SimpleInstaller.lockfile.matches(this)) {
+                Mirror locked = SimpleInstaller.lockfile.getMirror();
+                mirrors = locked == null ? Collections.emptyList() : Collections.singletonList(locked);
+            } else if (getMirrorList() != null) {
+                Mirror[] list = DownloadUtils.downloadMirrors(getMirrorList());
+                if (list != null && list.length > 0)
+                    mirrors = MirrorSelector.rank(list);
+            }
         }
-        return mirror;
+        return mirrors == null ? Collections.emptyList() : mirrors;
     }
 
     public boolean hideClient() {
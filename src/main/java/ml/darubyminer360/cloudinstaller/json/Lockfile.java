@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ml.darubyminer360.cloudinstaller.download.Transfer;
+
+import ml.darubyminer360.cloudinstaller.json.Version.Download;
+import ml.darubyminer360.cloudinstaller.json.Version.Library;
+import ml.darubyminer360.cloudinstaller.json.Version.LibraryDownload;
+
+/**
+ * Everything an install resolved: the url, size and SHA-1 of every file, and the mirror that was used.
+ * Urls that redirected also record where they ended up.
+ *
+ * Installing again from a lockfile skips the mirror list, version manifest and version json requests,
+ * and downloads straight from the recorded urls.
+ */
+public class Lockfile {
+    private String profile;
+    private String version;
+    private String minecraft;
+    private MirrorInfo mirror;
+    private Map<String, Entry> artifacts = new TreeMap<>();
+
+    public Lockfile() {}
+
+    public Lockfile(Install install) {
+        this.profile = install.getProfile();
+        this.version = install.getVersion();
+        this.minecraft = install.getMinecraft();
+    }
+
+    public static Lockfile load(File file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return Util.GSON.fromJson(new InputStreamReader(stream, StandardCharsets.UTF_8), Lockfile.class);
+        }
+    }
+
+    public void save(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = Transfer.getTemp(file.getAbsoluteFile(), ".tmp");
+        Files.write(temp.toPath(), Util.GSON.toJson(this).getBytes(StandardCharsets.UTF_8));
+        Transfer.moveIntoPlace(temp, file);
+    }
+
+    /**
+     * Checks if this lockfile was written by an install of the same profile.
+     */
+    public boolean matches(Install install) {
+        return install.getProfile() != null && install.getProfile().equals(profile) &&
+            install.getVersion() != null && install.getVersion().equals(version) &&
+            install.getMinecraft() != null && install.getMinecraft().equals(minecraft);
+    }
+
+    public boolean hasMirror() {
+        return mirror != null;
+    }
+
+    /**
+     * Gets the mirror used by the install that wrote this, or null if it didn't use one.
+     */
+    public Mirror getMirror() {
+        return mirror == null ? null : new Mirror(mirror.name, "", mirror.homepage, mirror.url);
+    }
+
+    public synchronized void setMirror(Mirror value) {
+        if (value == null) {
+            mirror = null;
+        } else {
+            mirror = new MirrorInfo();
+            mirror.name = value.getName();
+            mirror.homepage = value.getHomepage();
+            mirror.url = value.getUrl();
+        }
+    }
+
+    /**
+     * Gets the recorded download for the specified key, such as "minecraft:client", or null if there is none.
+     */
+    public synchronized Download getDownload(String key) {
+        Entry entry = artifacts == null ? null : artifacts.get(key);
+        return entry == null ? null : new Download(entry.url, entry.sha1, entry.size);
+    }
+
+    /**
+     * Gets the library with its download pointed at the recorded url.
+     * Libraries that aren't recorded, or were recorded with different contents, are returned unchanged.
+     */
+    public synchronized Library apply(Library library) {
+        LibraryDownload download = library.getDownloads() == null ? null : library.getDownloads().getArtifact();
+        Entry entry = artifacts == null ? null : artifacts.get(library.getName().getDescriptor());
+        if (download == null || entry == null || !download.hasUrl() || download.getSha1() == null || !download.getSha1().equals(entry.sha1))
+            return library;
+        return new Library(library.getName(), new LibraryDownload(download.getPath(), entry.url, entry.sha1, entry.size));
+    }
+
+    /**
+     * Gets the urls that redirected when this was written, mapped to where they ended up.
+     * These can be tried first to skip the redirect, the recorded url stays the one to fall back to.
+     */
+    public synchronized Map<String, String> getRedirects() {
+        Map<String, String> ret = new HashMap<>();
+        if (artifacts != null) {
+            for (Entry entry : artifacts.values()) {
+                if (entry.url != null && entry.resolved != null && !entry.resolved.equals(entry.url))
+                    ret.put(entry.url, entry.resolved);
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void put(String key, String url, String resolved, String sha1, int size) {
+        Entry entry = new Entry();
+        entry.url = url;
+        entry.resolved = url == null || url.equals(resolved) ? null : resolved;
+        entry.sha1 = sha1;
+        entry.size = size;
+        artifacts.put(key, entry);
+    }
+
+    private static class MirrorInfo {
+        private String name;
+        private String homepage;
+        private String url;
+    }
+
+    private static class Entry {
+        private String url;
+        private String resolved;
+        private int size;
+        private String sha1;
+    }
+}
@@ -16,13 +16,30 @@
 
 package ml.darubyminer360.cloudinstaller.json;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Manifest {
     private List<Info> versions;
 
+    // non-serialized values
+    private transient Map<String, Info> index;
+
     public String getUrl(String version) {
-        return versions == null ? null : versions.stream().filter(v -> version.equals(v.getId())).map(Info::getUrl).findFirst().orElse(null);
+        Info info = getIndex().get(version);
+        return info == null ? null : info.getUrl();
+    }
+
+    private synchronized Map<String, Info> getIndex() {
+        if (index == null) {
+            index = new HashMap<>();
+            if (versions != null) {
+                for (Info info : versions)
+                    index.putIfAbsent(info.getId(), info);
+            }
+        }
+        return index;
     }
 
     public static class Info {
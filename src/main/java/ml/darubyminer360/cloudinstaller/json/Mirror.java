@@ -22,6 +22,8 @@ import javax.imageio.ImageIO;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
+import ml.darubyminer360.cloudinstaller.download.CircuitBreaker;
+
 public class Mirror {
     private String name;
     private String image;
@@ -30,6 +32,11 @@ public class Mirror {
     private boolean triedImage;
     private Icon _image_;
 
+    // non-serialized values, measured while installing
+    private transient long latency = -1;
+    private transient long throughput = -1;
+    private transient int failures = 0;
+
     public Mirror() {}
 
     public Mirror(String name, String image, String homepage, String url) {
@@ -65,4 +72,64 @@ public class Mirror {
     public String getUrl() {
         return url;
     }
+
+    /**
+     * Time in milliseconds the mirror took to answer a request, or -1 if unknown.
+     */
+    public synchronized long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Transfer speed in bytes per second seen from this mirror, or -1 if unknown.
+     */
+    public synchronized long getThroughput() {
+        return throughput;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized void setStats(long latency, long throughput, int failures) {
+        this.latency = latency;
+        this.throughput = throughput;
+        this.failures = failures;
+    }
+
+    public synchronized void recordLatency(long millis) {
+        this.latency = millis;
+    }
+
+    public synchronized void recordTransfer(long bytes, long nanos) {
+        this.failures = 0;
+        if (bytes <= 0 || nanos <= 0)
+            return;
+        long speed = (long)(bytes / (nanos / 1_000_000_000D));
+        // Smooth it out, one small file is not a good measurement on its own
+        this.throughput = this.throughput <= 0 ? speed : (this.throughput * 3 + speed) / 4;
+    }
+
+    public synchronized void recordFailure() {
+        this.failures++;
+    }
+
+    /**
+     * A mirror whose host keeps failing is skipped until its circuit breaker lets requests through again.
+     */
+    public boolean isHealthy() {
+        return CircuitBreaker.forUrl(url).isClosed();
+    }
+
+    /**
+     * Estimated time in milliseconds to fetch a 1MB file, lower is better.
+     */
+    public synchronized double getScore() {
+        if (latency < 0)
+            return Double.MAX_VALUE;
+        double score = latency;
+        if (throughput > 0)
+            score += 1024 * 1024 * 1000D / throughput;
+        return score + failures * 1000D;
+    }
 }
@@ -16,8 +16,6 @@
 
 package ml.darubyminer360.cloudinstaller.json;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -28,6 +26,8 @@ import java.util.Map;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import ml.darubyminer360.cloudinstaller.DownloadUtils;
 
 public class Util {
@@ -36,17 +36,18 @@ public class Util {
             .create();
 
     public static InstallV1 loadInstallProfile() {
-        byte[] data = null;
+        // Parsed to a tree once, the spec decides which type the same tree is then bound to
+        JsonObject json;
         try (InputStream stream = Util.class.getResourceAsStream("/install_profile.json")) {
-            data = readFully(stream);
+            json = JsonParser.parseReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).getAsJsonObject();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Spec spec = GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8), Spec.class);
-        switch (spec.getSpec()) {
-            case 0: return new InstallV1(GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8), Install.class));
-            case 1: return GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8), InstallV1.class);
-            default: throw new IllegalArgumentException("Invalid launcher profile spec: " + spec.getSpec() + " Only 0, and 1 are supported");
+        int spec = json.has("spec") ? json.get("spec").getAsInt() : 0;
+        switch (spec) {
+            case 0: return new InstallV1(GSON.fromJson(json, Install.class));
+            case 1: return GSON.fromJson(json, InstallV1.class);
+            default: throw new IllegalArgumentException("Invalid launcher profile spec: " + spec + " Only 0, and 1 are supported");
         }
     }
 
@@ -74,7 +75,7 @@ public class Util {
             String url = manifest.getUrl(version);
             if (url == null)
                 return null;
-            if (!DownloadUtils.downloadFile(target, url))
+            if (!DownloadUtils.downloadMetadata(target, url))
                 return null;
         }
         try (InputStream stream = new FileInputStream(target)) {
@@ -84,19 +85,6 @@ public class Util {
         }
     }
 
-    private static byte[] readFully(InputStream stream) throws IOException {
-        byte[] data = new byte[4096];
-        ByteArrayOutputStream entryBuffer = new ByteArrayOutputStream();
-        int len;
-        do {
-            len = stream.read(data);
-            if (len > 0)
-                entryBuffer.write(data, 0, len);
-        } while (len != -1);
-
-        return entryBuffer.toByteArray();
-    }
-
     public static String replaceTokens(Map<String, String> tokens, String value) {
         StringBuilder buf = new StringBuilder();
 
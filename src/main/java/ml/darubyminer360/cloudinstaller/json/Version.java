@@ -43,6 +43,14 @@ public class Version {
         private String url;
         private boolean provided = false;
 
+        public Download() {}
+
+        public Download(String url, String sha1, int size) {
+            this.url = url;
+            this.sha1 = sha1;
+            this.size = size;
+        }
+
         public String getSha1() {
             return sha1;
         }
@@ -51,10 +59,20 @@ public class Version {
             return size;
         }
 
+        /**
+         * Gets the url to download from, never null. It is empty when there is nothing to download.
+         */
         public String getUrl() {
             return url == null || provided ? "" : url;
         }
 
+        /**
+         * Checks if there is a url to download from, libraries without one are created by processors.
+         */
+        public boolean hasUrl() {
+            return !getUrl().isEmpty();
+        }
+
         public boolean getProvided() {
             return provided;
         }
@@ -63,6 +81,13 @@ public class Version {
     public static class LibraryDownload extends Download {
         private String path;
 
+        public LibraryDownload() {}
+
+        public LibraryDownload(String path, String url, String sha1, int size) {
+            super(url, sha1, size);
+            this.path = path;
+        }
+
         public String getPath() {
             return path;
         }
@@ -76,6 +101,14 @@ public class Version {
         private Artifact name;
         private Downloads downloads;
 
+        public Library() {}
+
+        public Library(Artifact name, LibraryDownload artifact) {
+            this.name = name;
+            this.downloads = new Downloads();
+            this.downloads.artifact = artifact;
+        }
+
         public Artifact getName() {
             return name;
         }
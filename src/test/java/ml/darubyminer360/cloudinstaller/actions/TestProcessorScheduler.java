@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.actions;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Lives next to ProcessorScheduler as it is package private
+public class TestProcessorScheduler {
+    private static final Path ROOT = Paths.get("").toAbsolutePath().resolve("processors");
+    private static final List<CompletableFuture<Boolean>> NO_WAITS = Collections.emptyList();
+
+    private static Set<Path> paths(String... names) {
+        Set<Path> ret = new HashSet<>();
+        for (String name : names)
+            ret.add(ROOT.resolve(name));
+        return ret;
+    }
+
+    // Takes a while, so a processor that doesn't wait for it would start before it is done
+    private static ProcessorScheduler.Task slow(AtomicBoolean done) {
+        return log -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            done.set(true);
+            return true;
+        };
+    }
+
+    private static void assertOrdered(Set<Path> firstReads, Set<Path> firstWrites, Set<Path> secondReads, Set<Path> secondWrites) {
+        ProcessorScheduler scheduler = new ProcessorScheduler(ProgressCallback.TO_STD_OUT, 4);
+        AtomicBoolean first = new AtomicBoolean();
+        AtomicBoolean ordered = new AtomicBoolean();
+        scheduler.add("first", firstReads, firstWrites, NO_WAITS, slow(first));
+        scheduler.add("second", secondReads, secondWrites, NO_WAITS, log -> {
+            ordered.set(first.get());
+            return true;
+        });
+        assertTrue(scheduler.run());
+        assertTrue(ordered.get(), "Second processor started before the first finished");
+    }
+
+    @Test
+    public void testReadAfterWrite() {
+        assertOrdered(paths("in"), paths("a.jar"), paths("a.jar"), paths("b.jar"));
+        // Directories contain everything in them
+        assertOrdered(paths("in"), paths("out"), paths("out/a.jar"), paths("b.jar"));
+    }
+
+    @Test
+    public void testWriteAfterWrite() {
+        assertOrdered(paths("in"), paths("a.jar"), paths("other"), paths("a.jar"));
+    }
+
+    @Test
+    public void testWriteAfterRead() {
+        assertOrdered(paths("a.jar"), paths("b.jar"), paths("other"), paths("a.jar"));
+    }
+
+    @Test
+    public void testIndependent() {
+        // Reading the same file is no reason to wait, so both must be running at the same time to get past the latch
+        ProcessorScheduler scheduler = new ProcessorScheduler(ProgressCallback.TO_STD_OUT, 4);
+        CountDownLatch running = new CountDownLatch(2);
+        ProcessorScheduler.Task task = log -> {
+            running.countDown();
+            try {
+                return running.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        };
+        scheduler.add("first", paths("in"), paths("a.jar"), NO_WAITS, task);
+        scheduler.add("second", paths("in"), paths("b.jar"), NO_WAITS, task);
+        assertTrue(scheduler.run());
+    }
+
+    @Test
+    public void testFailure() {
+        ProcessorScheduler scheduler = new ProcessorScheduler(ProgressCallback.TO_STD_OUT, 4);
+        AtomicBoolean ran = new AtomicBoolean();
+        scheduler.add("first", paths("in"), paths("a.jar"), NO_WAITS, log -> false);
+        scheduler.add("second", paths("a.jar"), paths("b.jar"), NO_WAITS, log -> {
+            ran.set(true);
+            return true;
+        });
+        assertFalse(scheduler.run());
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void testFailedDownload() {
+        ProcessorScheduler scheduler = new ProcessorScheduler(ProgressCallback.TO_STD_OUT, 4);
+        AtomicBoolean ran = new AtomicBoolean();
+        scheduler.add("first", paths("lib.jar"), paths("a.jar"), Arrays.asList(CompletableFuture.completedFuture(false)), log -> {
+            ran.set(true);
+            return true;
+        });
+        assertFalse(scheduler.run());
+        assertFalse(ran.get());
+    }
+}
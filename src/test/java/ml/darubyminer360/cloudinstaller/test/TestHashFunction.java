@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestHashFunction {
+    @Test
+    public void testVectors() throws IOException {
+        assertEquals(HashFunction.MD5.hash("abc"), "900150983cd24fb0d6963f7d28e17f72");
+        assertEquals(HashFunction.SHA1.hash("abc"), "a9993e364706816aba3e25717850c26c9cd0d89d");
+        assertEquals(HashFunction.SHA256.hash("abc"), "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        assertEquals(HashFunction.SHA1.hash(""), "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        // Leading zeros must be kept
+        assertEquals(HashFunction.MD5.hash("jk8ssl"), "0000000018e6137ac2caab16074784a6");
+        assertEquals(HashFunction.MD5.hash(new ByteArrayInputStream("jk8ssl".getBytes())), "0000000018e6137ac2caab16074784a6");
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        // Larger than the read buffer, and not a multiple of it
+        byte[] data = new byte[200_000];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("hash", ".bin");
+        try {
+            Files.write(file.toPath(), data);
+            Map<HashFunction, String> hashes = HashFunction.hash(file, HashFunction.MD5, HashFunction.SHA1, HashFunction.SHA256);
+            for (HashFunction function : HashFunction.values()) {
+                assertEquals(hashes.get(function), function.hash(data));
+                assertEquals(function.hash(file), function.hash(data));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.InFlight;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestInFlight {
+    private static final String CONTENT = "library";
+    private static final String SHA1 = HashFunction.SHA1.hash(CONTENT);
+
+    @TempDir
+    File dir;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final CountDownLatch fetching = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    // Counts down once for every request that ends up waiting on another one
+    private static ProgressCallback waiting(CountDownLatch latch) {
+        return (message, priority) -> {
+            if (message.startsWith("  Already being downloaded"))
+                latch.countDown();
+        };
+    }
+
+    // Blocks until released, so the other requests arrive while it is still running
+    private BooleanSupplier fetch(File target, boolean result) {
+        return () -> {
+            fetches.incrementAndGet();
+            fetching.countDown();
+            try {
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                target.getParentFile().mkdirs();
+                Files.write(target.toPath(), CONTENT.getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        };
+    }
+
+    private CompletableFuture<Boolean> start(ProgressCallback monitor, String url, String sha1, File target, BooleanSupplier fetch) {
+        return CompletableFuture.supplyAsync(() -> InFlight.fetch(monitor, url, sha1, target, fetch));
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        File first = new File(dir, "a/lib.jar");
+        File second = new File(dir, "b/lib.jar");
+        CountDownLatch waiters = new CountDownLatch(2);
+        ProgressCallback monitor = waiting(waiters);
+
+        CompletableFuture<Boolean> owner = start(monitor, "https://example.com/coalesced.jar", SHA1, first, fetch(first, true));
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+        // Same target from another url, and same url to another target
+        CompletableFuture<Boolean> sameTarget = start(monitor, "https://mirror.example.com/coalesced.jar", SHA1, first, fetch(first, true));
+        CompletableFuture<Boolean> sameUrl = start(monitor, "https://example.com/coalesced.jar", SHA1, second, fetch(second, true));
+        assertTrue(waiters.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        assertTrue(owner.get(5, TimeUnit.SECONDS));
+        assertTrue(sameTarget.get(5, TimeUnit.SECONDS));
+        assertTrue(sameUrl.get(5, TimeUnit.SECONDS));
+        assertEquals(1, fetches.get());
+        assertEquals(CONTENT, new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFailureShared() throws Exception {
+        File first = new File(dir, "a/lib.jar");
+        File second = new File(dir, "b/lib.jar");
+        CountDownLatch waiters = new CountDownLatch(1);
+        ProgressCallback monitor = waiting(waiters);
+
+        CompletableFuture<Boolean> owner = start(monitor, "https://example.com/failed.jar", SHA1, first, fetch(first, false));
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> sameUrl = start(monitor, "https://example.com/failed.jar", SHA1, second, fetch(second, true));
+        assertTrue(waiters.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        assertFalse(owner.get(5, TimeUnit.SECONDS));
+        assertFalse(sameUrl.get(5, TimeUnit.SECONDS));
+        assertEquals(1, fetches.get());
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void testCopyChecked() throws Exception {
+        File first = new File(dir, "a/lib.jar");
+        File second = new File(dir, "b/lib.jar");
+        CountDownLatch waiters = new CountDownLatch(1);
+        ProgressCallback monitor = waiting(waiters);
+
+        CompletableFuture<Boolean> owner = start(monitor, "https://example.com/checked.jar", null, first, fetch(first, true));
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+        // Expects other contents, so the copy of what the first request fetched must be thrown away
+        CompletableFuture<Boolean> sameUrl = start(monitor, "https://example.com/checked.jar", HashFunction.SHA1.hash("other"), second, fetch(second, true));
+        assertTrue(waiters.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        assertTrue(owner.get(5, TimeUnit.SECONDS));
+        assertFalse(sameUrl.get(5, TimeUnit.SECONDS));
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void testSequential() {
+        // Once a fetch is done the next request for it runs again, the result isn't cached
+        File target = new File(dir, "lib.jar");
+        AtomicInteger count = new AtomicInteger();
+        assertTrue(InFlight.fetch(ProgressCallback.TO_STD_OUT, "https://example.com/sequential.jar", SHA1, target, () -> count.incrementAndGet() > 0));
+        assertTrue(InFlight.fetch(ProgressCallback.TO_STD_OUT, "https://example.com/sequential.jar", SHA1, target, () -> count.incrementAndGet() > 0));
+        assertEquals(2, count.get());
+    }
+}
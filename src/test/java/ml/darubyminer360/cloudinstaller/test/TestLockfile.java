@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ml.darubyminer360.cloudinstaller.json.Artifact;
+import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Lockfile;
+import ml.darubyminer360.cloudinstaller.json.Mirror;
+import ml.darubyminer360.cloudinstaller.json.Util;
+import ml.darubyminer360.cloudinstaller.json.Version.Download;
+import ml.darubyminer360.cloudinstaller.json.Version.Library;
+import ml.darubyminer360.cloudinstaller.json.Version.LibraryDownload;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestLockfile {
+    private static final String SHA1 = "a9993e364706816aba3e25717850c26c9cd0d89d";
+
+    private static InstallV1 profile(String version) {
+        return Util.GSON.fromJson("{\"spec\": 1, \"profile\": \"test\", \"version\": \"" + version + "\", \"minecraft\": \"1.0\"}", InstallV1.class);
+    }
+
+    @Test
+    public void testRoundTrip(@TempDir File dir) throws IOException {
+        Lockfile lockfile = new Lockfile(profile("1"));
+        lockfile.put("minecraft:server", "https://example.com/server.jar", "https://cdn.example.com/server.jar", SHA1, 1234);
+        lockfile.put("net.x:lib:1", "https://example.com/lib.jar", "https://example.com/lib.jar", SHA1, 10);
+        lockfile.setMirror(new Mirror("Mirror", "", "https://mirror.example.com", "https://mirror.example.com/maven/"));
+
+        File file = new File(dir, "installer.lock.json");
+        lockfile.save(file);
+        assertFalse(new File(dir, "installer.lock.json.tmp").exists());
+        Lockfile loaded = Lockfile.load(file);
+
+        assertTrue(loaded.matches(profile("1")));
+        assertFalse(loaded.matches(profile("2")));
+
+        // The original url is what gets installed from, the redirect target is only a shortcut
+        Download server = loaded.getDownload("minecraft:server");
+        assertEquals("https://example.com/server.jar", server.getUrl());
+        assertEquals(SHA1, server.getSha1());
+        assertEquals(1234, server.getSize());
+        assertEquals(Collections.singletonMap("https://example.com/server.jar", "https://cdn.example.com/server.jar"), loaded.getRedirects());
+        assertNull(loaded.getDownload("minecraft:client"));
+
+        assertTrue(loaded.hasMirror());
+        assertEquals("https://mirror.example.com/maven/", loaded.getMirror().getUrl());
+        assertEquals("Mirror", loaded.getMirror().getName());
+    }
+
+    @Test
+    public void testApply() {
+        Lockfile lockfile = new Lockfile(profile("1"));
+        lockfile.put("net.x:lib:1", "https://locked.example.com/lib-1.jar", null, SHA1, 10);
+
+        Library lib = new Library(Artifact.from("net.x:lib:1"), new LibraryDownload("net/x/lib/1/lib-1.jar", "https://example.com/lib-1.jar", SHA1, 10));
+        LibraryDownload applied = lockfile.apply(lib).getDownloads().getArtifact();
+        assertEquals("https://locked.example.com/lib-1.jar", applied.getUrl());
+        assertEquals("net/x/lib/1/lib-1.jar", applied.getPath());
+
+        // Different contents, or nothing to download, are left alone
+        Library changed = new Library(Artifact.from("net.x:lib:1"), new LibraryDownload("net/x/lib/1/lib-1.jar", "https://example.com/lib-1.jar", "0000000000000000000000000000000000000000", 10));
+        assertSame(changed, lockfile.apply(changed));
+        Library generated = new Library(Artifact.from("net.x:lib:1"), new LibraryDownload("net/x/lib/1/lib-1.jar", null, SHA1, 10));
+        assertSame(generated, lockfile.apply(generated));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.PartialDownload;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPartialDownload {
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] data = new byte[100_000];
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    private HttpServer server;
+    private String url;
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    public void start() throws IOException {
+        new Random(42).nextBytes(data);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/file.bin", this::serve);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+    }
+
+    // Serves the data with a strong ETag, honoring Range only while If-Range still matches
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        ranges.add(range);
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        long start = 0;
+        if (range != null && ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range")))
+            start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+
+        if (start >= data.length) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+            exchange.sendResponseHeaders(416, -1);
+        } else if (start > 0) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+            exchange.sendResponseHeaders(206, data.length - start);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data, (int)start, data.length - (int)start);
+            }
+        } else {
+            exchange.sendResponseHeaders(200, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        }
+        exchange.close();
+    }
+
+    private File fetch(byte[] existing, String validator) throws IOException {
+        File target = new File(dir, "file.bin");
+        if (existing != null) {
+            Files.write(new File(dir, "file.bin.part").toPath(), existing);
+            Files.write(new File(dir, "file.bin.part.etag").toPath(), validator.getBytes(StandardCharsets.UTF_8));
+        }
+        MessageDigest digest = HashFunction.SHA1.get();
+        File part = PartialDownload.fetch(ProgressCallback.TO_STD_OUT, url, target, digest);
+        assertArrayEquals(data, Files.readAllBytes(part.toPath()));
+        // Bytes from the previous attempt count towards the hash too
+        assertEquals(HashFunction.SHA1.hash(data), HashFunction.SHA1.hex(digest.digest()));
+
+        PartialDownload.complete(target);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(part.exists());
+        assertFalse(new File(dir, "file.bin.part.etag").exists());
+        return target;
+    }
+
+    @Test
+    public void testFresh() throws IOException {
+        fetch(null, null);
+        assertEquals(Arrays.asList((String)null), ranges);
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        fetch(Arrays.copyOf(data, 40_000), ETAG);
+        assertEquals(Arrays.asList("bytes=40000-"), ranges);
+    }
+
+    @Test
+    public void testChangedOnServer() throws IOException {
+        // The stale part file must be replaced, not appended to
+        byte[] stale = new byte[40_000];
+        fetch(stale, "\"v0\"");
+        assertEquals(Arrays.asList("bytes=40000-"), ranges);
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws IOException {
+        // A part file longer than the file on the server can't be resumed, the download starts over
+        byte[] longer = Arrays.copyOf(data, data.length + 1000);
+        fetch(longer, ETAG);
+        assertEquals(Arrays.asList("bytes=" + longer.length + "-", null), ranges);
+    }
+}
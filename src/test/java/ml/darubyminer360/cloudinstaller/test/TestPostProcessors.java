@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ml.darubyminer360.cloudinstaller.HashFunction;
+import ml.darubyminer360.cloudinstaller.SimpleInstaller;
+import ml.darubyminer360.cloudinstaller.actions.PostProcessors;
+import ml.darubyminer360.cloudinstaller.actions.ProgressCallback;
+import ml.darubyminer360.cloudinstaller.download.ArtifactCache;
+import ml.darubyminer360.cloudinstaller.download.ProcessorCache;
+import ml.darubyminer360.cloudinstaller.json.InstallV1;
+import ml.darubyminer360.cloudinstaller.json.Util;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPostProcessors {
+    private static final String CONTENT = "generated";
+
+    private boolean headless;
+    private boolean artifactCache;
+    private boolean processorCache;
+
+    // Installer settings are global, so put them back for whatever runs next
+    @BeforeEach
+    public void configure() {
+        headless = SimpleInstaller.headless;
+        artifactCache = ArtifactCache.isEnabled();
+        processorCache = ProcessorCache.isEnabled();
+        SimpleInstaller.headless = true;
+        ArtifactCache.setEnabled(false);
+        ProcessorCache.setEnabled(false);
+    }
+
+    @AfterEach
+    public void restore() {
+        SimpleInstaller.headless = headless;
+        ArtifactCache.setEnabled(artifactCache);
+        ProcessorCache.setEnabled(processorCache);
+    }
+
+    @Test
+    public void testWritesLibraryWithoutUrl(@TempDir File root) throws IOException {
+
+        File libraries = new File(root, "libraries");
+        File jar = new File(libraries, "test/writer/1/writer-1.jar");
+        writeJar(jar, Writer.class);
+        File output = new File(libraries, "test/generated/1/generated-1.jar");
+
+        String json = "{\"spec\": 1, \"profile\": \"test\", \"version\": \"1\", \"minecraft\": \"1.0\", " +
+            "\"libraries\": [{\"name\": \"test:generated:1\", \"downloads\": {\"artifact\": {\"path\": \"test/generated/1/generated-1.jar\", \"url\": \"\"}}}], " +
+            "\"processors\": [{\"jar\": \"test:writer:1\", \"args\": [\"[test:generated:1]\"], " +
+            "\"outputs\": {\"[test:generated:1]\": \"" + HashFunction.SHA1.hash(CONTENT) + "\"}}]}";
+        PostProcessors processors = new PostProcessors(Util.GSON.fromJson(json, InstallV1.class), false, ProgressCallback.TO_STD_OUT);
+
+        // The library has no url, so its download fails, the processor creating it must not wait for that
+        Map<Path, CompletableFuture<Boolean>> pending = new HashMap<>();
+        pending.put(jar.toPath().toAbsolutePath().normalize(), CompletableFuture.completedFuture(true));
+        pending.put(output.toPath().toAbsolutePath().normalize(), CompletableFuture.completedFuture(false));
+
+        assertTrue(processors.process(libraries, new File(root, "minecraft.jar"), root, new File(root, "installer.jar"), pending));
+        assertEquals(CONTENT, new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static void writeJar(File target, Class<?> main) throws IOException {
+        target.getParentFile().mkdirs();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, main.getName());
+        String name = main.getName().replace('.', '/') + ".class";
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(target.toPath()), manifest);
+             InputStream in = main.getClassLoader().getResourceAsStream(name)) {
+            out.putNextEntry(new JarEntry(name));
+            in.transferTo(out);
+            out.closeEntry();
+        }
+    }
+
+    public static class Writer {
+        public static void main(String[] args) throws IOException {
+            Path target = Paths.get(args[0]);
+            Files.createDirectories(target.getParent());
+            try (OutputStream out = Files.newOutputStream(target)) {
+                out.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
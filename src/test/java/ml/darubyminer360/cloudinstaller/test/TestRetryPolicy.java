@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 DaRubyMiner360 & Cloud Loader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ml.darubyminer360.cloudinstaller.test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import ml.darubyminer360.cloudinstaller.download.HttpStatusException;
+import ml.darubyminer360.cloudinstaller.download.RetryPolicy;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRetryPolicy {
+    private static final URI URL = URI.create("https://example.com/file.jar");
+
+    @Test
+    public void testRetryable() {
+        assertTrue(RetryPolicy.isRetryable(new HttpStatusException(503, URL)));
+        assertTrue(RetryPolicy.isRetryable(new HttpStatusException(429, URL, 1000)));
+        assertTrue(RetryPolicy.isRetryable(new HttpTimeoutException("timeout")));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException("refused")));
+        assertTrue(RetryPolicy.isRetryable(new IOException("connection reset")));
+        assertFalse(RetryPolicy.isRetryable(new HttpStatusException(404, URL)));
+        assertFalse(RetryPolicy.isRetryable(new HttpStatusException(429, URL, 3_600_000)));
+        assertFalse(RetryPolicy.isRetryable(new UnknownHostException("example.com")));
+        assertFalse(RetryPolicy.isRetryable(new InterruptedIOException("canceled")));
+    }
+
+    @Test
+    public void testDelay() {
+        assertEquals(1234, RetryPolicy.getDelay(1, new HttpStatusException(429, URL, 1234)));
+        for (int retry = 1; retry < 40; retry++) {
+            long delay = RetryPolicy.getDelay(retry, new IOException());
+            assertTrue(delay >= 250 && delay <= 10_000, "Delay out of range: " + delay);
+        }
+    }
+}